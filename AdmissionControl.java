@@ -0,0 +1,247 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which commands get to the database, so that one client running expensive searches in a loop
+ * can't starve everyone else. Enabled with -Dadmission=true.
+ *
+ * Every user has a token bucket, and every command costs tokens by type and, for searches, by the number
+ * of itineraries asked for; an indirect search costs a lot more than a direct one, since it runs the
+ * Flights self-join. Sessions that have not logged in share a bucket per session. A command the bucket
+ * can't pay for is refused. A bucket that has filled up again is no different from a new one, so such
+ * buckets are dropped every time it takes to refill one, and the map only holds recently active keys.
+ *
+ * On top of that, searches only run while fewer than a global limit of them are in flight. The limit
+ * follows the latency of the searches that complete: it grows by one per limit's worth of searches faster
+ * than the target, and shrinks by a tenth for every slower one, but at most once per target interval.
+ * Indirect searches are shed first, as soon as three quarters of the limit is in use, so that direct
+ * searches still get through when the database is busy. Logins, bookings, payments and cancels are
+ * never shed; they only count towards their user's bucket.
+ *
+ *   -Dadmission.rate=20        tokens a user earns per second
+ *   -Dadmission.burst=100      tokens a user can save up
+ *   -Dadmission.limit=32       searches in flight to start with
+ *   -Dadmission.target_ms=200  search latency the limit aims for
+ */
+public class AdmissionControl
+{
+  private static final AdmissionControl INSTANCE = Boolean.getBoolean("admission")
+          ? new AdmissionControl(Double.parseDouble(System.getProperty("admission.rate", "20")),
+                  Double.parseDouble(System.getProperty("admission.burst", "100")),
+                  Integer.getInteger("admission.limit", 32),
+                  Long.getLong("admission.target_ms", 200))
+          : null;
+
+  private static final int MIN_LIMIT = 2;
+
+  private final double rate;
+  private final double burst;
+  private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+  // when idle buckets are dropped next, every refill time
+  private final AtomicLong nextSweep;
+  private final long sweepNanos;
+
+  private final int maxLimit;
+  private final long targetNanos;
+  // guarded by this
+  private double limit;
+  private int inFlight;
+  private long lastDecrease;
+
+  /**
+   * The decision on a command; one let in is handed back to {@link #done} once it completed.
+   */
+  static class Permit
+  {
+    private static final Permit UNCOUNTED = new Permit(false, null);
+
+    final boolean search;
+    // the response to a refused command, null if it was let in
+    final String refusal;
+    final long start = System.nanoTime();
+
+    private Permit(boolean search, String refusal)
+    {
+      this.search = search;
+      this.refusal = refusal;
+    }
+  }
+
+  private static class Bucket
+  {
+    double tokens;
+    long refilled;
+    // dropped from the map; whoever still holds it looks it up again
+    boolean evicted;
+
+    Bucket(double tokens, long now)
+    {
+      this.tokens = tokens;
+      this.refilled = now;
+    }
+  }
+
+  /**
+   * @return the admission control turned on by -Dadmission=true, or null
+   */
+  public static AdmissionControl get()
+  {
+    return INSTANCE;
+  }
+
+  AdmissionControl(double rate, double burst, int limit, long targetMillis)
+  {
+    this.rate = rate;
+    this.burst = burst;
+    this.limit = limit;
+    // room to grow when the database turns out faster than the target
+    this.maxLimit = 4 * limit;
+    this.targetNanos = targetMillis * 1_000_000;
+    this.lastDecrease = System.nanoTime() - targetNanos - 1;
+    this.sweepNanos = Math.max(1_000_000_000L, (long) (burst / rate * 1e9));
+    this.nextSweep = new AtomicLong(System.nanoTime() + sweepNanos);
+  }
+
+  /**
+   * Charges the logged in user, or the session when nobody is logged in, for the command in
+   * {@code tokens}, and counts it in flight if it is a search. A refused command costs nothing, so a
+   * client that waits as long as it is told gets in.
+   */
+  public Permit admit(Query q, CommandTokenizer tokens)
+  {
+    String user = q.currentUser();
+    String key = user != null ? user : "session:" + q.sessionId();
+    double cost = cost(tokens);
+    double wait = charge(key, cost);
+    if (wait > 0)
+      return new Permit(false, String.format("Error: rate limit exceeded, retry in %d ms\n", (long) Math.ceil(wait * 1000)));
+    if (tokens.command() != CommandTokenizer.SEARCH)
+      return Permit.UNCOUNTED;
+
+    boolean indirect = !tokens.is(3, "1");
+    synchronized (this) {
+      if (indirect && inFlight >= 0.75 * limit)
+        return new Permit(false, "Error: server busy, indirect search shed; retry later or search direct flights only\n");
+      if (inFlight >= limit)
+        return new Permit(false, "Error: server busy, search shed; retry later\n");
+      inFlight++;
+    }
+    return new Permit(true, null);
+  }
+
+  /**
+   * Takes the latency of a completed command into account.
+   */
+  public void done(Permit permit)
+  {
+    if (!permit.search)
+      return;
+    long now = System.nanoTime();
+    long latency = now - permit.start;
+    synchronized (this) {
+      inFlight--;
+      if (latency <= targetNanos) {
+        limit = Math.min(maxLimit, limit + 1 / limit);
+      } else if (now - lastDecrease > targetNanos) {
+        // a burst of slow searches all saw the same overload, so it only counts once
+        limit = Math.max(MIN_LIMIT, limit * 0.9);
+        lastDecrease = now;
+      }
+    }
+  }
+
+  /**
+   * @return the current limit on searches in flight
+   */
+  public synchronized int limit()
+  {
+    return (int) limit;
+  }
+
+  /**
+   * @return tokens the command in {@code tokens} costs
+   */
+  static double cost(CommandTokenizer tokens)
+  {
+    switch (tokens.command()) {
+      case CommandTokenizer.SEARCH:
+        int k = tokens.count() > 5 ? tokens.parseInt(5) : 1;
+        // a parse error costs as much as the smallest search
+        k = Math.max(1, k);
+        return tokens.is(3, "1") ? 1 + k / 100.0 : 5 + k / 10.0;
+      case CommandTokenizer.LOGIN:
+      case CommandTokenizer.CREATE:
+      case CommandTokenizer.BOOK:
+      case CommandTokenizer.PAY:
+      case CommandTokenizer.CANCEL:
+        return 2;
+      case CommandTokenizer.RESERVATIONS:
+        return 1;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Takes {@code cost} tokens from the bucket of {@code key}.
+   *
+   * @return 0 if taken, or else the seconds until the bucket could pay
+   */
+  double charge(String key, double cost)
+  {
+    long now = System.nanoTime();
+    long sweep = nextSweep.get();
+    if (now - sweep >= 0 && nextSweep.compareAndSet(sweep, now + sweepNanos))
+      sweep(now);
+    while (true) {
+      Bucket b = buckets.computeIfAbsent(key, k -> new Bucket(burst, now));
+      synchronized (b) {
+        if (b.evicted)
+          continue;
+        refill(b, now);
+        // more than the burst is never affordable, so such a command only needs a full bucket
+        double needed = Math.min(cost, burst);
+        if (b.tokens >= needed) {
+          b.tokens -= needed;
+          return 0;
+        }
+        return (needed - b.tokens) / rate;
+      }
+    }
+  }
+
+  private void refill(Bucket b, long now)
+  {
+    // another thread may have refilled it with a later time already
+    if (now - b.refilled <= 0)
+      return;
+    b.tokens = Math.min(burst, b.tokens + (now - b.refilled) / 1e9 * rate);
+    b.refilled = now;
+  }
+
+  /**
+   * Drops the buckets that are full again.
+   */
+  private void sweep(long now)
+  {
+    for (Map.Entry<String, Bucket> e : buckets.entrySet()) {
+      Bucket b = e.getValue();
+      synchronized (b) {
+        refill(b, now);
+        if (b.tokens >= burst) {
+          b.evicted = true;
+          buckets.remove(e.getKey(), b);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return number of keys with a bucket
+   */
+  int buckets()
+  {
+    return buckets.size();
+  }
+}
@@ -0,0 +1,245 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking facade over a {@link Query} session.
+ *
+ * Every call returns at once with a future of a structured result; turning it into the text the
+ * command line prints is a separate {@link Result#render()} step. Calls on one AsyncQuery still take
+ * effect in the order they were made, since each session has a single logged in user and search state.
+ * Within one call, sub-queries that don't depend on each other run at the same time on a small pool of
+ * worker connections: the direct and the one-stop search, and the flight lookups of reservations.
+ */
+public class AsyncQuery
+{
+  /**
+   * The outcome of a command.
+   */
+  public static abstract class Result
+  {
+    /**
+     * @return the response the text protocol prints for this result
+     */
+    public abstract String render();
+  }
+
+  /**
+   * Outcome of a command that only reports success or failure: login, create, book, pay and cancel.
+   */
+  public static class Message extends Result
+  {
+    public final String text;
+
+    Message(String text)
+    {
+      this.text = text;
+    }
+
+    @Override
+    public String render() { return text; }
+  }
+
+  public static class SearchResult extends Result
+  {
+    public final List<Query.Itinerary> itineraries;
+    // set instead of itineraries when the search failed
+    public final String error;
+
+    SearchResult(List<Query.Itinerary> itineraries, String error)
+    {
+      this.itineraries = itineraries;
+      this.error = error;
+    }
+
+    @Override
+    public String render() { return error != null ? error : Query.renderItineraries(itineraries); }
+  }
+
+  public static class ReservationsResult extends Result
+  {
+    public final List<Query.Reservation> reservations;
+    // set instead of reservations when the user can't list them
+    public final String error;
+
+    ReservationsResult(List<Query.Reservation> reservations, String error)
+    {
+      this.reservations = reservations;
+      this.error = error;
+    }
+
+    @Override
+    public String render() { return error != null ? error : Query.renderReservations(reservations); }
+  }
+
+  interface SqlWork<T>
+  {
+    T run(Query q) throws SQLException;
+  }
+
+  private final Query session;
+  private final Executor executor;
+  private final BlockingQueue<Query> workers;
+
+  // completes when the last call made on this session is done
+  private CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+
+  /**
+   * @param session the session that owns the login and search state, already connected
+   * @param workers connected Query instances for read-only sub-queries, not shared with other sessions
+   * @param executor runs the blocking JDBC calls
+   */
+  public AsyncQuery(Query session, List<Query> workers, Executor executor)
+  {
+    if (workers.isEmpty())
+      throw new IllegalArgumentException("AsyncQuery needs at least one worker connection");
+    this.session = session;
+    this.executor = executor;
+    this.workers = new ArrayBlockingQueue<>(workers.size(), false, workers);
+  }
+
+  public CompletableFuture<Message> login(String username, String password)
+  {
+    return message(q -> q.transaction_login(username, password));
+  }
+
+  public CompletableFuture<Message> createCustomer(String username, String password, int initAmount)
+  {
+    return message(q -> q.transaction_createCustomer(username, password, initAmount));
+  }
+
+  public CompletableFuture<Message> book(int itineraryId)
+  {
+    return message(q -> q.transaction_book(itineraryId));
+  }
+
+  public CompletableFuture<Message> pay(int reservationId)
+  {
+    return message(q -> q.transaction_pay(reservationId));
+  }
+
+  public CompletableFuture<Message> cancel(int reservationId)
+  {
+    return message(q -> q.transaction_cancel(reservationId));
+  }
+
+  public CompletableFuture<SearchResult> search(String originCity, String destinationCity, boolean directFlight,
+                                                int dayOfMonth, int numberOfItineraries)
+  {
+    return search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, SearchRank.DURATION);
+  }
+
+  /**
+   * Same as {@link Query#search}, with the direct and one-stop searches running at the same time.
+   * The one-stop search can't know how many direct flights there will be, so it asks for the full count and
+   * the merge drops what doesn't fit.
+   */
+  public CompletableFuture<SearchResult> search(String originCity, String destinationCity, boolean directFlight,
+                                                int dayOfMonth, int numberOfItineraries, SearchRank rank)
+  {
+    return sequenced(() -> {
+      CompletableFuture<List<Query.Itinerary>> direct =
+              onWorker(w -> w.searchDirect(originCity, destinationCity, dayOfMonth, numberOfItineraries, rank));
+      CompletableFuture<List<Query.Itinerary>> indirect = directFlight
+              ? CompletableFuture.completedFuture(Collections.emptyList())
+              : onWorker(w -> w.searchIndirect(originCity, destinationCity, dayOfMonth, numberOfItineraries, rank));
+
+      return direct.thenCombine(indirect, (d, i) -> {
+        List<Query.Itinerary> itineraries = Query.mergeItineraries(d, i, numberOfItineraries, rank);
+        session.rememberSearch(itineraries);
+        return new SearchResult(Collections.unmodifiableList(itineraries), null);
+      }).exceptionally(e -> {
+        e.printStackTrace();
+        return new SearchResult(null, "Failed to search\n");
+      });
+    });
+  }
+
+  /**
+   * Same as {@link Query#transaction_reservations}, with the flights of all reservations looked up at the same time.
+   */
+  public CompletableFuture<ReservationsResult> reservations()
+  {
+    return sequenced(() -> CompletableFuture.supplyAsync(() -> {
+      if (session.currentUser() == null)
+        return null;
+      try {
+        return session.reservationRows();
+      } catch (SQLException e) {
+        throw new CompletionException(e);
+      }
+    }, executor).thenCompose(rows -> {
+      if (rows == null)
+        return CompletableFuture.completedFuture(
+                new ReservationsResult(null, "Cannot view reservations, not logged in\n"));
+
+      List<CompletableFuture<Query.Flight>> lookups = new ArrayList<>();
+      for (Query.ReservationRow row : rows) {
+        lookups.add(onWorker(w -> w.flightInfo(row.fid1, row.day)));
+        lookups.add(row.fid2 < 0 ? CompletableFuture.completedFuture(null)
+                : onWorker(w -> w.flightInfo(row.fid2, row.day)));
+      }
+      return CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+        List<Query.Reservation> reservations = new ArrayList<>();
+        for (int i = 0; i < rows.size(); ++i) {
+          List<Query.Flight> flights = new ArrayList<>();
+          for (int leg = 0; leg < 2; ++leg) {
+            Query.Flight f = lookups.get(2 * i + leg).join();
+            if (f != null)
+              flights.add(f);
+          }
+          reservations.add(new Query.Reservation(rows.get(i).id, rows.get(i).paid, flights));
+        }
+        return new ReservationsResult(reservations, null);
+      });
+    }).exceptionally(e -> {
+      e.printStackTrace();
+      return new ReservationsResult(null, "Failed to retrieve reservations\n");
+    }));
+  }
+
+  private CompletableFuture<Message> message(Function<Query, String> command)
+  {
+    return sequenced(() -> CompletableFuture.supplyAsync(() -> new Message(command.apply(session)), executor));
+  }
+
+  /**
+   * Starts {@code call} once every earlier call on this session has finished, whether or not it failed.
+   */
+  private synchronized <T> CompletableFuture<T> sequenced(Supplier<CompletableFuture<T>> call)
+  {
+    CompletableFuture<T> next = tail.handle((r, e) -> null).thenCompose(v -> call.get());
+    tail = next;
+    return next;
+  }
+
+  /**
+   * Runs {@code work} on a worker connection once one is free.
+   */
+  private <T> CompletableFuture<T> onWorker(SqlWork<T> work)
+  {
+    return CompletableFuture.supplyAsync(() -> {
+      Query w = null;
+      try {
+        w = workers.take();
+        return work.run(w);
+      } catch (SQLException e) {
+        throw new CompletionException(e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CompletionException(e);
+      } finally {
+        if (w != null)
+          workers.add(w);
+      }
+    }, executor);
+  }
+}
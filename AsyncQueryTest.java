@@ -0,0 +1,132 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link AsyncQuery}, which runs the direct and one-stop searches of a call at the same time,
+ * answers what {@link Query} answers running them one after the other. Runs on a local H2 database of its
+ * own with a synthetic schedule, which has one-stop itineraries between any two cities.
+ */
+public class AsyncQueryTest
+{
+  static final String URL = "jdbc:h2:mem:async;DB_CLOSE_DELAY=-1;NON_KEYWORDS=DAY";
+  static final String FLIGHTS = "20000";
+  static final int SESSIONS = 3;
+  static final String[][] ROUTES = {
+          { "Seattle WA", "Boston MA" }, { "Kahului HI", "Los Angeles CA" }, { "Seattle WA", "Chicago IL" } };
+  static final List<String> RANKS = Arrays.asList("duration", "price", "weighted:0.3", "pareto");
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(SESSIONS * 2);
+  private final List<Query> connections = new ArrayList<>();
+  private String dbconfig;
+  private Query serial;
+
+  private Query connect () throws Exception
+  {
+    Query q = new Query(dbconfig);
+    q.openConnection();
+    q.prepareStatements();
+    connections.add(q);
+    return q;
+  }
+
+  private AsyncQuery session () throws Exception
+  {
+    return new AsyncQuery(connect(), Arrays.asList(connect(), connect()), executor);
+  }
+
+  @Before
+  public void open () throws Exception
+  {
+    Properties config = new Properties();
+    try (FileInputStream in = new FileInputStream("dbconn.local.properties")) {
+      config.load(in);
+    }
+    config.setProperty("flightservice.url", URL);
+    config.remove("flightservice.flights_csv");
+    config.setProperty("flightservice.synthetic_flights", FLIGHTS);
+    File file = File.createTempFile("async", ".properties");
+    file.deleteOnExit();
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      config.store(out, null);
+    }
+    dbconfig = file.getPath();
+
+    serial = connect();
+    serial.clearTables();
+  }
+
+  @After
+  public void close () throws Exception
+  {
+    executor.shutdownNow();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+    for (Query q : connections)
+      q.closeConnection();
+  }
+
+  @Test
+  public void searchesMatchTheSerialOnes () throws Exception
+  {
+    List<AsyncQuery> sessions = new ArrayList<>();
+    for (int i = 0; i < SESSIONS; i++)
+      sessions.add(session());
+
+    // every session keeps both of its workers busy at once
+    List<CompletableFuture<AsyncQuery.SearchResult>> results = new ArrayList<>();
+    List<String> expected = new ArrayList<>();
+    int next = 0;
+    for (String[] route : ROUTES)
+      for (String rank : RANKS)
+        for (boolean direct : new boolean[] { true, false }) {
+          results.add(sessions.get(next++ % SESSIONS).search(route[0], route[1], direct, 1, 7,
+                  SearchRank.parse(rank)));
+          expected.add(serial.transaction_search(route[0], route[1], direct, 1, 7, SearchRank.parse(rank)));
+        }
+
+    boolean anyOneStop = false;
+    for (int i = 0; i < results.size(); i++) {
+      AsyncQuery.SearchResult r = results.get(i).get(30, TimeUnit.SECONDS);
+      assertEquals(null, r.error);
+      assertEquals("search " + i, expected.get(i), r.render());
+      for (Query.Itinerary it : r.itineraries)
+        anyOneStop |= it.flights.size() == 2;
+    }
+    assertTrue("no search found a one-stop itinerary", anyOneStop);
+  }
+
+  @Test
+  public void booksFromTheLastSearch () throws Exception
+  {
+    AsyncQuery async = session();
+    async.createCustomer("alice", "pw", 100000);
+    async.login("alice", "pw");
+    CompletableFuture<AsyncQuery.SearchResult> search =
+            async.search("Seattle WA", "Boston MA", false, 1, 3, SearchRank.PRICE);
+    CompletableFuture<AsyncQuery.Message> book = async.book(0);
+    CompletableFuture<AsyncQuery.ReservationsResult> reservations = async.reservations();
+
+    assertEquals("Booked flight(s), reservation ID: 1\n", book.get(30, TimeUnit.SECONDS).render());
+    List<Query.Flight> booked = search.get().itineraries.get(0).flights;
+    List<Query.Flight> reserved = reservations.get(30, TimeUnit.SECONDS).reservations.get(0).flights;
+    assertEquals(booked.toString(), reserved.toString());
+
+    assertEquals("Logged in as alice\n", serial.transaction_login("alice", "pw"));
+    assertEquals(serial.transaction_reservations(), reservations.get().render());
+  }
+}
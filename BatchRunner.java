@@ -0,0 +1,146 @@
+import java.io.BufferedReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Non-interactive mode: runs a script of commands, one per line, and writes the responses without
+ * prompts or the usage banner.
+ *
+ * Searches don't depend on anything but their arguments, so a run of consecutive searches is pipelined:
+ * all but the last are sent on separate reader connections at the same time, and the last one runs on
+ * the session itself so that a following book sees its itineraries. Every other command waits for the
+ * commands before it, so the session sees the script in order. Responses are written in script order.
+ */
+public class BatchRunner
+{
+  private final Query session;
+  private final int maxReaders;
+
+  // reader connections for pipelined searches, opened the first time they are needed
+  private final BlockingQueue<Query> idleReaders;
+  private final List<Query> readers = new ArrayList<>();
+  private ExecutorService pool;
+
+  private final List<String> pendingSearches = new ArrayList<>();
+
+  /**
+   * @param session the session that runs the script
+   * @param maxReaders most searches in flight besides the session's own; 0 runs everything on the session
+   */
+  public BatchRunner(Query session, int maxReaders)
+  {
+    this.session = session;
+    this.maxReaders = maxReaders;
+    this.idleReaders = new ArrayBlockingQueue<>(Math.max(1, maxReaders));
+  }
+
+  /**
+   * Runs commands from {@code in} until it is exhausted or a quit command is seen.
+   */
+  public void run(BufferedReader in, Writer out) throws Exception
+  {
+    CommandTokenizer tokens = new CommandTokenizer();
+    String line;
+    while ((line = in.readLine()) != null) {
+      if (line.trim().isEmpty())
+        continue;
+
+      tokens.parse(line);
+      if (tokens.command() == CommandTokenizer.SEARCH && maxReaders > 0) {
+        pendingSearches.add(line);
+        if (pendingSearches.size() > maxReaders)
+          flushSearches(out);
+        continue;
+      }
+
+      flushSearches(out);
+      String response = FlightService.execute(session, tokens);
+      out.write(response);
+      out.flush();
+      if (tokens.command() == CommandTokenizer.QUIT)
+        return;
+    }
+    flushSearches(out);
+  }
+
+  /**
+   * Runs the pending searches and writes their responses in order.
+   */
+  private void flushSearches(Writer out) throws Exception
+  {
+    int n = pendingSearches.size();
+    if (n == 0)
+      return;
+
+    List<Future<String>> earlier = new ArrayList<>();
+    for (String search : pendingSearches.subList(0, n - 1))
+      earlier.add(pool().submit(() -> onReader(search)));
+
+    // the last search decides what a later book refers to, so it runs on the session
+    String last = FlightService.execute(session, pendingSearches.get(n - 1));
+
+    for (Future<String> f : earlier) {
+      try {
+        out.write(f.get());
+      } catch (ExecutionException e) {
+        e.getCause().printStackTrace();
+        out.write("Failed to search\n");
+      }
+    }
+    out.write(last);
+    out.flush();
+    pendingSearches.clear();
+  }
+
+  private String onReader(String search) throws Exception
+  {
+    Query reader = idleReaders.poll();
+    if (reader == null)
+      reader = openReader();
+    try {
+      // charged and recorded as the session's own, since the reader never logs in
+      return FlightService.execute(reader, session, search);
+    } finally {
+      idleReaders.offer(reader);
+    }
+  }
+
+  private Query openReader() throws Exception
+  {
+    Query reader = new Query(FlightService.DBCONFIG_FILENAME);
+    reader.openConnection();
+    reader.prepareStatements();
+    synchronized (readers) {
+      readers.add(reader);
+    }
+    return reader;
+  }
+
+  private ExecutorService pool()
+  {
+    if (pool == null)
+      pool = Executors.newFixedThreadPool(maxReaders);
+    return pool;
+  }
+
+  /**
+   * Closes the reader connections. The session is left open.
+   */
+  public void close() throws Exception
+  {
+    if (pool != null)
+      pool.shutdown();
+    synchronized (readers) {
+      for (Query r : readers)
+        r.closeConnection();
+      readers.clear();
+    }
+  }
+}
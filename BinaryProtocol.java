@@ -0,0 +1,284 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary form of the service's responses, for machine clients of {@link WireServer}.
+ *
+ * Everything travels in frames: a varint length followed by that many bytes. A request frame holds a
+ * command line in UTF-8, as typed at the prompt; commands are a few dozen bytes, so only the responses
+ * are encoded. The first byte of a response tells its type:
+ *
+ *   TEXT          string                         every response but the two below
+ *   ITINERARIES   count, then per itinerary: flight count, flights
+ *   RESERVATIONS  count, then per reservation: id, paid (0 or 1), flight count, flights
+ *
+ * A flight is fid, day, carrier, flight number, origin, destination, time, capacity and price. Numbers are
+ * varints, strings a varint byte count and UTF-8. Carriers and cities are dictionary coded per connection:
+ * the first time one is sent it is written as 0 and the string, which gets the next number from 1 up,
+ * and from then on only that number is sent. A decoder has to see every response of the connection, in
+ * order, to follow the dictionary.
+ */
+public class BinaryProtocol
+{
+  public static final int TEXT = 0;
+  public static final int ITINERARIES = 1;
+  public static final int RESERVATIONS = 2;
+
+  // frames are small; anything bigger is a broken or hostile peer
+  static final int MAX_FRAME = 16 << 20;
+
+  /**
+   * Writes {@code payload} as a frame.
+   */
+  static void writeFrame(OutputStream out, byte[] payload, int length) throws IOException
+  {
+    CommandRecorder.writeVarLong(out, length);
+    out.write(payload, 0, length);
+  }
+
+  /**
+   * @return the payload of the next frame, or null at the end of the stream
+   */
+  static byte[] readFrame(DataInputStream in) throws IOException
+  {
+    long length;
+    try {
+      length = CommandRecorder.readVarLong(in);
+    } catch (EOFException e) {
+      return null;
+    }
+    if (length > MAX_FRAME)
+      throw new IOException("frame of " + length + " bytes");
+    byte[] payload = new byte[(int) length];
+    in.readFully(payload);
+    return payload;
+  }
+
+  /**
+   * Encodes the responses of one connection. The buffer is reused, so a payload is only valid until the
+   * next response is encoded.
+   */
+  static class Encoder
+  {
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private byte[] buf = new byte[4096];
+    private int pos;
+
+    byte[] buffer()
+    {
+      return buf;
+    }
+
+    /**
+     * @return the length of the payload in {@link #buffer()}
+     */
+    int text(String text)
+    {
+      pos = 0;
+      putByte(TEXT);
+      putString(text);
+      return pos;
+    }
+
+    int itineraries(List<Query.Itinerary> itineraries)
+    {
+      pos = 0;
+      putByte(ITINERARIES);
+      putVarInt(itineraries.size());
+      for (Query.Itinerary it : itineraries)
+        putFlights(it.flights);
+      return pos;
+    }
+
+    int reservations(List<Query.Reservation> reservations)
+    {
+      pos = 0;
+      putByte(RESERVATIONS);
+      putVarInt(reservations.size());
+      for (Query.Reservation r : reservations) {
+        putVarInt(r.id);
+        putByte(r.paid ? 1 : 0);
+        putFlights(r.flights);
+      }
+      return pos;
+    }
+
+    private void putFlights(List<Query.Flight> flights)
+    {
+      putVarInt(flights.size());
+      for (Query.Flight f : flights) {
+        putVarInt(f.fid);
+        putVarInt(f.dayOfMonth);
+        putWord(f.carrierId);
+        putString(f.flightNum);
+        putWord(f.originCity);
+        putWord(f.destCity);
+        putVarInt(f.time);
+        putVarInt(f.capacity);
+        putVarInt(f.price);
+      }
+    }
+
+    private void putWord(String s)
+    {
+      Integer id = dictionary.get(s);
+      if (id != null) {
+        putVarInt(id);
+        return;
+      }
+      dictionary.put(s, dictionary.size() + 1);
+      putVarInt(0);
+      putString(s);
+    }
+
+    private void putString(String s)
+    {
+      byte[] bytes = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+      putVarInt(bytes.length);
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, buf, pos, bytes.length);
+      pos += bytes.length;
+    }
+
+    private void putVarInt(int v)
+    {
+      ensure(5);
+      // negative values go out as their unsigned 32 bits
+      pos = CommandRecorder.putVarLong(buf, pos, v & 0xffffffffL);
+    }
+
+    private void putByte(int b)
+    {
+      ensure(1);
+      buf[pos++] = (byte) b;
+    }
+
+    private void ensure(int n)
+    {
+      if (pos + n > buf.length)
+        buf = Arrays.copyOf(buf, Math.max(pos + n, buf.length * 2));
+    }
+  }
+
+  /**
+   * A decoded response; only the field of its type is set.
+   */
+  static class Response
+  {
+    int type;
+    String text;
+    List<Query.Itinerary> itineraries;
+    List<Query.Reservation> reservations;
+  }
+
+  /**
+   * Decodes the responses of one connection.
+   */
+  static class Decoder
+  {
+    private final List<String> dictionary = new ArrayList<>();
+    private byte[] buf;
+    private int pos;
+
+    Response decode(byte[] payload) throws IOException
+    {
+      buf = payload;
+      pos = 0;
+      Response r = new Response();
+      r.type = getByte();
+      switch (r.type) {
+        case TEXT:
+          r.text = getString();
+          break;
+        case ITINERARIES:
+          int n = getVarInt();
+          r.itineraries = new ArrayList<>(n);
+          for (int i = 0; i < n; i++)
+            r.itineraries.add(new Query.Itinerary(getFlights().toArray(new Query.Flight[0])));
+          break;
+        case RESERVATIONS:
+          int m = getVarInt();
+          r.reservations = new ArrayList<>(m);
+          for (int i = 0; i < m; i++) {
+            int id = getVarInt();
+            boolean paid = getByte() == 1;
+            r.reservations.add(new Query.Reservation(id, paid, getFlights()));
+          }
+          break;
+        default:
+          throw new IOException("unknown response type " + r.type);
+      }
+      return r;
+    }
+
+    private List<Query.Flight> getFlights() throws IOException
+    {
+      int n = getVarInt();
+      List<Query.Flight> flights = new ArrayList<>(n);
+      for (int i = 0; i < n; i++) {
+        Query.Flight f = new Query.Flight();
+        f.fid = getVarInt();
+        f.dayOfMonth = getVarInt();
+        f.carrierId = getWord();
+        f.flightNum = getString();
+        f.originCity = getWord();
+        f.destCity = getWord();
+        f.time = getVarInt();
+        f.capacity = getVarInt();
+        f.price = getVarInt();
+        flights.add(f);
+      }
+      return flights;
+    }
+
+    private String getWord() throws IOException
+    {
+      int id = getVarInt();
+      if (id != 0) {
+        if (id > dictionary.size())
+          throw new IOException("unknown dictionary entry " + id);
+        return dictionary.get(id - 1);
+      }
+      String s = getString();
+      dictionary.add(s);
+      return s;
+    }
+
+    private String getString() throws IOException
+    {
+      int n = getVarInt();
+      if (n < 0 || pos + n > buf.length)
+        throw new IOException("string runs past the frame");
+      String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+      pos += n;
+      return s;
+    }
+
+    private int getVarInt() throws IOException
+    {
+      long v = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        int b = getByte();
+        v |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0)
+          return (int) v;
+      }
+      throw new IOException("malformed varint");
+    }
+
+    private int getByte() throws IOException
+    {
+      if (pos >= buf.length)
+        throw new IOException("truncated frame");
+      return buf[pos++] & 0xff;
+    }
+  }
+}
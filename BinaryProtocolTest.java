@@ -0,0 +1,132 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips through {@link BinaryProtocol.Encoder}, the frames and {@link BinaryProtocol.Decoder}.
+ */
+public class BinaryProtocolTest
+{
+  static Query.Flight flight(int fid, int day, String carrier, String number, String origin, String dest,
+                             int time, int capacity, int price)
+  {
+    Query.Flight f = new Query.Flight();
+    f.fid = fid;
+    f.dayOfMonth = day;
+    f.carrierId = carrier;
+    f.flightNum = number;
+    f.originCity = origin;
+    f.destCity = dest;
+    f.time = time;
+    f.capacity = capacity;
+    f.price = price;
+    return f;
+  }
+
+  static final Query.Flight SEA_BOS = flight(60454, 1, "AS", "24", "Seattle WA", "Boston MA", 297, 14, 140);
+  static final Query.Flight SEA_BOS_B6 = flight(717866, 1, "B6", "498", "Seattle WA", "Boston MA", 305, 3, 946);
+  static final Query.Flight SEA_ORD = flight(1, 1, "AS", "100", "Seattle WA", "Chicago IL", 240, 0, 0);
+  static final Query.Flight ORD_BOS = flight(2, 1, "B6", "200", "Chicago IL", "Boston MA", 130, 20, 99);
+  static final Query.Flight OGG_LAX = flight(280, 1, "AA", "14", "Kahului HI", "Los Angeles CA", 288, 18, 598);
+
+  private final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+  private final BinaryProtocol.Encoder encoder = new BinaryProtocol.Encoder();
+  private final List<Integer> lengths = new ArrayList<>();
+
+  private void send(int length) throws IOException
+  {
+    BinaryProtocol.writeFrame(wire, encoder.buffer(), length);
+    lengths.add(length);
+  }
+
+  private List<BinaryProtocol.Response> receive() throws IOException
+  {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+    BinaryProtocol.Decoder decoder = new BinaryProtocol.Decoder();
+    List<BinaryProtocol.Response> responses = new ArrayList<>();
+    byte[] payload;
+    while ((payload = BinaryProtocol.readFrame(in)) != null)
+      responses.add(decoder.decode(payload));
+    return responses;
+  }
+
+  @Test
+  public void roundTripsSeveralFrames () throws IOException
+  {
+    List<Query.Itinerary> first = Arrays.asList(new Query.Itinerary(SEA_BOS), new Query.Itinerary(SEA_ORD, ORD_BOS),
+            new Query.Itinerary(SEA_BOS_B6));
+    // nothing but carriers and cities the first frame already sent
+    List<Query.Itinerary> again = Arrays.asList(new Query.Itinerary(SEA_BOS_B6), new Query.Itinerary(SEA_BOS));
+    List<Query.Reservation> reservations = Arrays.asList(
+            new Query.Reservation(1, false, Arrays.asList(SEA_ORD, ORD_BOS)),
+            new Query.Reservation(2, true, Arrays.asList(OGG_LAX)));
+
+    send(encoder.itineraries(first));
+    send(encoder.text("Booked flight(s), reservation ID: 1\n"));
+    send(encoder.reservations(reservations));
+    send(encoder.itineraries(again));
+    send(encoder.text("Caf\u00e9, \u6771\u4eac\n"));
+    send(encoder.itineraries(new ArrayList<>()));
+
+    List<BinaryProtocol.Response> responses = receive();
+    assertEquals(6, responses.size());
+    assertEquals(BinaryProtocol.ITINERARIES, responses.get(0).type);
+    assertEquals(Query.renderItineraries(first), Query.renderItineraries(responses.get(0).itineraries));
+    assertEquals("Booked flight(s), reservation ID: 1\n", responses.get(1).text);
+    assertEquals(Query.renderReservations(reservations), Query.renderReservations(responses.get(2).reservations));
+    assertEquals(Query.renderItineraries(again), Query.renderItineraries(responses.get(3).itineraries));
+    assertEquals("Caf\u00e9, \u6771\u4eac\n", responses.get(4).text);
+    assertTrue(responses.get(5).itineraries.isEmpty());
+
+    // repeated carriers and cities only cost their number
+    assertTrue(lengths.get(3) + " vs " + lengths.get(0), lengths.get(3) < lengths.get(0) / 2);
+  }
+
+  @Test
+  public void encoderBufferGrows () throws IOException
+  {
+    List<Query.Itinerary> many = new ArrayList<>();
+    for (int i = 0; i < 2000; i++)
+      many.add(new Query.Itinerary(flight(i, 1, "C" + i, "" + i, "Origin " + i, "Dest " + i, i, i, i)));
+    send(encoder.itineraries(many));
+    assertEquals(Query.renderItineraries(many), Query.renderItineraries(receive().get(0).itineraries));
+  }
+
+  @Test
+  public void decoderNeedsEveryResponse () throws IOException
+  {
+    send(encoder.itineraries(Arrays.asList(new Query.Itinerary(SEA_BOS))));
+    int length = encoder.itineraries(Arrays.asList(new Query.Itinerary(SEA_BOS)));
+    byte[] second = Arrays.copyOf(encoder.buffer(), length);
+    try {
+      new BinaryProtocol.Decoder().decode(second);
+      fail("decoded a dictionary entry it never saw");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("unknown dictionary entry"));
+    }
+  }
+
+  @Test
+  public void truncatedFramesAreRejected () throws IOException
+  {
+    int length = encoder.text("Logged in as user1\n");
+    try {
+      new BinaryProtocol.Decoder().decode(Arrays.copyOf(encoder.buffer(), length - 3));
+      fail("decoded a truncated frame");
+    } catch (IOException e) {
+      // expected
+    }
+    assertNull(BinaryProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(new byte[0]))));
+  }
+}
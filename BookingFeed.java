@@ -0,0 +1,377 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Ordered stream of the booking, payment, cancel and expiry events of one database, for consumers that
+ * want to follow changes without scanning Reservations and Capacity.
+ *
+ * Sessions publish into a bounded lock-free ring: a producer claims the next position with one CAS and
+ * marks its slot ready through a per-slot sequence, so publishing never takes a lock and the position
+ * gives every event its place in the stream. A single writer thread drains the ring in order, hands the
+ * events to in-process subscribers and appends them to a log of segment files in
+ * {@code flightservice.feed_dir}, one tab separated line per event. Segments are named after their first
+ * sequence number and roll over every {@code flightservice.feed_segment_events} events; the sequence
+ * carries on from the log when the service is restarted.
+ *
+ * Delivery is at most once. Events are published after their transaction commits, and the log is only
+ * flushed when the writer catches up, so a crash loses the events still in the ring or the write buffer.
+ * Their sequence numbers are given to the next events after the restart, because the sequence carries
+ * on from the last event in the log. An in-process subscriber, or a reader of a log that an OS crash cut
+ * short, may therefore have seen a sequence number that later names a different event. A normal exit
+ * drains the ring and flushes the log first; see {@link #close}.
+ *
+ * Consumers in other processes read the log from the last sequence they saw:
+ *   java BookingFeed feed_dir [from_sequence] [-f]
+ */
+public class BookingFeed
+{
+  public enum Type { BOOK, PAY, CANCEL, EXPIRE }
+
+  public static final class Event
+  {
+    public final long sequence;
+    public final long time;
+    public final Type type;
+    public final int reservationId;
+    // null for expiries, which no user asked for
+    public final String username;
+    public final int fid1;
+    public final int fid2;
+    // price charged or refunded, 0 when it doesn't apply
+    public final int amount;
+
+    Event(long sequence, long time, Type type, int reservationId, String username, int fid1, int fid2, int amount)
+    {
+      this.sequence = sequence;
+      this.time = time;
+      this.type = type;
+      this.reservationId = reservationId;
+      this.username = username;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.amount = amount;
+    }
+
+    @Override
+    public String toString()
+    {
+      return sequence + "\t" + time + "\t" + type + "\t" + reservationId + "\t" + (username == null ? "-" : username)
+              + "\t" + fid1 + "\t" + fid2 + "\t" + amount;
+    }
+
+    static Event parse(String line)
+    {
+      String[] f = line.split("\t");
+      return new Event(Long.parseLong(f[0]), Long.parseLong(f[1]), Type.valueOf(f[2]), Integer.parseInt(f[3]),
+              f[4].equals("-") ? null : f[4], Integer.parseInt(f[5]), Integer.parseInt(f[6]), Integer.parseInt(f[7]));
+    }
+  }
+
+  private static final Map<String, BookingFeed> DATABASES = new ConcurrentHashMap<>();
+  private static final ReentrantLock starting = new ReentrantLock();
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  private final File dir;
+  private final long segmentEvents;
+  // sequence of the event at ring position 0
+  private final long base;
+
+  private final Event[] ring;
+  private final AtomicLongArray ready;
+  private final int mask;
+  // next position to claim
+  private final AtomicLong tail = new AtomicLong();
+  // next position to drain, only moved by the writer thread
+  private long head;
+
+  private final List<Consumer<Event>> subscribers = new CopyOnWriteArrayList<>();
+  private final Thread writer;
+  private volatile boolean closed;
+  private Writer segment;
+  private long segmentCount;
+
+  /**
+   * @return the feed of the database at {@code url} and {@code schema}, started the first time
+   */
+  static BookingFeed forDatabase(String url, String schema, File dir, int bufferSize, long segmentEvents)
+          throws IOException
+  {
+    String key = schema == null ? url : url + "#" + schema;
+    BookingFeed feed = DATABASES.get(key);
+    if (feed != null)
+      return feed;
+    starting.lock();
+    try {
+      feed = DATABASES.get(key);
+      if (feed == null) {
+        feed = new BookingFeed(schema == null ? dir : new File(dir, schema), bufferSize, segmentEvents);
+        Runtime.getRuntime().addShutdownHook(new Thread(feed::close));
+        DATABASES.put(key, feed);
+      }
+      return feed;
+    } finally {
+      starting.unlock();
+    }
+  }
+
+  BookingFeed(File dir, int bufferSize, long segmentEvents) throws IOException
+  {
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("cannot create feed directory " + dir);
+    this.dir = dir;
+    this.segmentEvents = segmentEvents;
+    this.base = lastSequence(dir) + 1;
+
+    int size = Integer.highestOneBit(Math.max(2, bufferSize));
+    this.ring = new Event[size];
+    this.ready = new AtomicLongArray(size);
+    this.mask = size - 1;
+    for (int i = 0; i < size; i++)
+      ready.set(i, i);
+
+    writer = new Thread(this::drain, "booking-feed");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Adds an event to the stream. Waits only if the writer has fallen a whole ring behind. Once the feed
+   * is closed, events are dropped.
+   */
+  public void publish(Type type, int reservationId, String username, int fid1, int fid2, int amount)
+  {
+    while (!closed) {
+      long pos = tail.get();
+      int idx = (int) (pos & mask);
+      long diff = ready.get(idx) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          ring[idx] = new Event(base + pos, System.currentTimeMillis(), type, reservationId, username, fid1, fid2, amount);
+          // publishes the slot to the writer
+          ready.set(idx, pos + 1);
+          return;
+        }
+      } else if (diff < 0) {
+        // full
+        LockSupport.parkNanos(10_000);
+      }
+    }
+  }
+
+  /**
+   * Calls {@code subscriber} on the writer thread for every event published from now on, in order.
+   */
+  public void subscribe(Consumer<Event> subscriber)
+  {
+    subscribers.add(subscriber);
+  }
+
+  public void unsubscribe(Consumer<Event> subscriber)
+  {
+    subscribers.remove(subscriber);
+  }
+
+  /**
+   * @return the sequence the next published event will get
+   */
+  public long nextSequence()
+  {
+    return base + tail.get();
+  }
+
+  /**
+   * Stops taking events, hands the ones already published to the subscribers and the log, and closes the
+   * log. Runs at shutdown.
+   */
+  public void close()
+  {
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void drain()
+  {
+    while (true) {
+      int idx = (int) (head & mask);
+      if (ready.get(idx) != head + 1) {
+        // a publisher that claimed a position before the close still fills its slot
+        if (closed && head == tail.get()) {
+          closeSegment();
+          return;
+        }
+        flush();
+        LockSupport.parkNanos(1_000_000);
+        continue;
+      }
+      Event e = ring[idx];
+      ring[idx] = null;
+      ready.set(idx, head + ring.length);
+      head++;
+
+      for (Consumer<Event> s : subscribers) {
+        try {
+          s.accept(e);
+        } catch (RuntimeException ex) {
+          ex.printStackTrace();
+        }
+      }
+      append(e);
+    }
+  }
+
+  private void append(Event e)
+  {
+    try {
+      if (segment == null || segmentCount >= segmentEvents) {
+        if (segment != null)
+          segment.close();
+        segment = new BufferedWriter(new FileWriter(new File(dir, segmentName(e.sequence)), true));
+        segmentCount = 0;
+      }
+      segment.write(e.toString());
+      segment.write('\n');
+      segmentCount++;
+    } catch (IOException ex) {
+      // the in-process subscribers still got the event
+      ex.printStackTrace();
+    }
+  }
+
+  private void flush()
+  {
+    if (segment == null)
+      return;
+    try {
+      segment.flush();
+    } catch (IOException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  private void closeSegment()
+  {
+    if (segment == null)
+      return;
+    try {
+      segment.close();
+    } catch (IOException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  static String segmentName(long firstSequence)
+  {
+    return String.format("%020d", firstSequence) + SEGMENT_SUFFIX;
+  }
+
+  static File[] segments(File dir)
+  {
+    File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+    if (files == null)
+      return new File[0];
+    // zero padded, so names sort in sequence order
+    Arrays.sort(files);
+    return files;
+  }
+
+  private static long lastSequence(File dir) throws IOException
+  {
+    File[] files = segments(dir);
+    for (int i = files.length - 1; i >= 0; i--) {
+      List<String> lines = completeLines(files[i]);
+      if (!lines.isEmpty())
+        return Event.parse(lines.get(lines.size() - 1)).sequence;
+    }
+    return 0;
+  }
+
+  /**
+   * Reads the events logged in {@code dir} with a sequence of at least {@code from}.
+   *
+   * @return the sequence to read from next time
+   */
+  public static long read(File dir, long from, Consumer<Event> consumer) throws IOException
+  {
+    File[] files = segments(dir);
+    long next = from;
+    for (int i = 0; i < files.length; i++) {
+      // a segment ends where the next one starts
+      if (i + 1 < files.length && firstSequence(files[i + 1]) <= from)
+        continue;
+      for (String line : completeLines(files[i])) {
+        Event e = Event.parse(line);
+        if (e.sequence >= next) {
+          consumer.accept(e);
+          next = e.sequence + 1;
+        }
+      }
+    }
+    return next;
+  }
+
+  /**
+   * @return the lines of {@code segment} that end in a newline; the last one may still be being written,
+   * or have been cut short by a crash
+   */
+  private static List<String> completeLines(File segment) throws IOException
+  {
+    List<String> lines = new ArrayList<>();
+    StringBuilder line = new StringBuilder();
+    try (BufferedReader in = new BufferedReader(new FileReader(segment))) {
+      int c;
+      while ((c = in.read()) != -1) {
+        if (c == '\n') {
+          lines.add(line.toString());
+          line.setLength(0);
+        } else {
+          line.append((char) c);
+        }
+      }
+    }
+    return lines;
+  }
+
+  private static long firstSequence(File segment)
+  {
+    String name = segment.getName();
+    return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 1) {
+      System.err.println("usage: java BookingFeed feed_dir [from_sequence] [-f]");
+      System.exit(1);
+    }
+    File dir = new File(args[0]);
+    long from = args.length > 1 && !args[1].equals("-f") ? Long.parseLong(args[1]) : 1;
+    boolean follow = Arrays.asList(args).contains("-f");
+    do {
+      from = read(dir, from, System.out::println);
+      System.out.flush();
+      if (follow)
+        Thread.sleep(500);
+    } while (follow);
+  }
+}
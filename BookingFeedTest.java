@@ -0,0 +1,141 @@
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link BookingFeed} with a ring much smaller than the number of events, so the publishers keep
+ * wrapping around it, and checks what the subscribers and the log get.
+ */
+public class BookingFeedTest
+{
+  static final int RING = 4;
+  static final int SEGMENT_EVENTS = 1000;
+
+  private final File dir;
+
+  public BookingFeedTest () throws Exception
+  {
+    dir = Files.createTempDirectory("feed").toFile();
+  }
+
+  @After
+  public void delete ()
+  {
+    for (File f : BookingFeed.segments(dir))
+      f.delete();
+    dir.delete();
+  }
+
+  private static List<BookingFeed.Event> logged (File dir, long from) throws Exception
+  {
+    List<BookingFeed.Event> events = new ArrayList<>();
+    BookingFeed.read(dir, from, events::add);
+    return events;
+  }
+
+  @Test
+  public void keepsOrderAcrossWraparound () throws Exception
+  {
+    int producers = 4;
+    int perProducer = 2000;
+    BookingFeed feed = new BookingFeed(dir, RING, SEGMENT_EVENTS);
+    List<BookingFeed.Event> delivered = new ArrayList<>();
+    feed.subscribe(delivered::add);
+
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      int producer = p;
+      threads.add(new Thread(() -> {
+        for (int i = 0; i < perProducer; i++)
+          feed.publish(BookingFeed.Type.BOOK, i, "user" + producer, producer, -1, 100);
+      }));
+    }
+    for (Thread t : threads)
+      t.start();
+    for (Thread t : threads)
+      t.join();
+    feed.close();
+
+    assertEquals(producers * perProducer, delivered.size());
+    int[] nextId = new int[producers];
+    for (int i = 0; i < delivered.size(); i++) {
+      BookingFeed.Event e = delivered.get(i);
+      assertEquals(i + 1, e.sequence);
+      // each producer's events keep the order it published them in
+      assertEquals(nextId[e.fid1]++, e.reservationId);
+    }
+
+    List<BookingFeed.Event> log = logged(dir, 1);
+    assertEquals(delivered.size(), log.size());
+    for (int i = 0; i < log.size(); i++)
+      assertEquals(delivered.get(i).toString(), log.get(i).toString());
+    assertEquals(producers * perProducer / SEGMENT_EVENTS, BookingFeed.segments(dir).length);
+
+    // a reader that has seen part of the log only gets the rest
+    List<BookingFeed.Event> rest = logged(dir, 2500);
+    assertEquals(producers * perProducer - 2499, rest.size());
+    assertEquals(2500, rest.get(0).sequence);
+  }
+
+  @Test
+  public void closeDrainsTheRing () throws Exception
+  {
+    BookingFeed feed = new BookingFeed(dir, RING, SEGMENT_EVENTS);
+    CountDownLatch release = new CountDownLatch(1);
+    List<BookingFeed.Event> delivered = new ArrayList<>();
+    feed.subscribe(e -> {
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      delivered.add(e);
+    });
+
+    // the writer holds the first event, so the rest fill the ring
+    for (int i = 1; i <= RING + 1; i++)
+      feed.publish(BookingFeed.Type.PAY, i, "alice", 1, 2, 10 * i);
+    assertEquals(RING + 2, feed.nextSequence());
+
+    Thread closing = new Thread(feed::close);
+    closing.start();
+    release.countDown();
+    closing.join();
+
+    assertEquals(RING + 1, delivered.size());
+    assertEquals(RING + 1, logged(dir, 1).size());
+
+    // published after the close: dropped
+    feed.publish(BookingFeed.Type.CANCEL, 99, "alice", 1, 2, 0);
+    assertEquals(RING + 1, logged(dir, 1).size());
+  }
+
+  @Test
+  public void sequenceCarriesOnAfterARestart () throws Exception
+  {
+    BookingFeed feed = new BookingFeed(dir, RING, SEGMENT_EVENTS);
+    for (int i = 0; i < 10; i++)
+      feed.publish(BookingFeed.Type.BOOK, i, "bob", 1, -1, 5);
+    feed.close();
+
+    BookingFeed restarted = new BookingFeed(dir, RING, SEGMENT_EVENTS);
+    assertEquals(11, restarted.nextSequence());
+    restarted.publish(BookingFeed.Type.EXPIRE, 3, null, 1, -1, 0);
+    restarted.close();
+
+    List<BookingFeed.Event> log = logged(dir, 1);
+    assertEquals(11, log.size());
+    BookingFeed.Event expiry = log.get(10);
+    assertEquals(11, expiry.sequence);
+    assertEquals(BookingFeed.Type.EXPIRE, expiry.type);
+    assertTrue(expiry.username == null);
+  }
+}
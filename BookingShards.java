@@ -0,0 +1,130 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs bookings on one writer per partition of the month's days instead of on the sessions themselves.
+ *
+ * A reservation only has flights on one day, since both legs of an itinerary fly the same day, and a user
+ * can book at most one reservation per day. So each day is owned by a single thread with its own
+ * connection: bookings on the same day queue up on it, bookings on days of different partitions never
+ * wait for each other, and the same-day check can't race with a concurrent booking of the same user. The
+ * seats of a partition's flights, as tracked by {@link SeatAvailability}, are only ever taken by its
+ * writer. Reservation IDs come from a counter in memory, seeded from Reservations, instead of a MAX(rev_id)
+ * query that every booking would have to lock. Writers only share it for the last step of a booking:
+ * a writer takes the next ID, inserts the reservation and commits under one lock, and only then moves the
+ * counter on. So IDs follow the order of the commits, start from 1 and go up by 1 for every successful
+ * booking, and failed bookings take none.
+ *
+ * The counter is only right for a single service process: a second process booking into the same
+ * database keeps its own counter, and its bookings fail on the primary key of Reservations once the two
+ * hand out the same ID. Run shards in one process per database, or leave them off.
+ *
+ * Enabled with {@code flightservice.booking_shards}, the number of partitions (up to 31). There is one
+ * instance per database and customer schema.
+ */
+public class BookingShards
+{
+  private static final Map<String, BookingShards> DATABASES = new ConcurrentHashMap<>();
+  private static final ReentrantLock starting = new ReentrantLock();
+
+  /**
+   * The last reservation ID handed out, which a writer reads and moves on while holding {@code committing}.
+   */
+  static class ReservationIds
+  {
+    final ReentrantLock committing = new ReentrantLock();
+    int last;
+  }
+
+  private final ExecutorService[] writers;
+  private final Query[] connections;
+  private final ReservationIds reservationIds = new ReservationIds();
+
+  /**
+   * @return the shards of the database at {@code url} and {@code schema}, started the first time
+   */
+  static BookingShards forDatabase(String configFilename, String url, String schema, int partitions)
+          throws Exception
+  {
+    String key = schema == null ? url : url + "#" + schema;
+    BookingShards shards = DATABASES.get(key);
+    if (shards != null)
+      return shards;
+    starting.lock();
+    try {
+      shards = DATABASES.get(key);
+      if (shards == null) {
+        shards = new BookingShards(configFilename, schema, Math.min(31, partitions));
+        DATABASES.put(key, shards);
+      }
+      return shards;
+    } finally {
+      starting.unlock();
+    }
+  }
+
+  private BookingShards(String configFilename, String schema, int partitions) throws Exception
+  {
+    writers = new ExecutorService[partitions];
+    connections = new Query[partitions];
+    for (int i = 0; i < partitions; i++) {
+      Query q = new Query(configFilename, schema);
+      q.internal = true;
+      q.openConnection();
+      q.prepareStatements();
+      connections[i] = q;
+      String name = "booking-shard-" + i;
+      writers[i] = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    reservationIds.last = connections[0].lastReservationId();
+  }
+
+  /**
+   * @return the partition that owns {@code dayOfMonth}
+   */
+  public int partition(int dayOfMonth)
+  {
+    return dayOfMonth % writers.length;
+  }
+
+  /**
+   * Books {@code flights} for {@code user} on the writer of their day and waits for it.
+   *
+   * @return the response of transaction_book
+   */
+  public String book(String user, int itineraryId, List<Query.Flight> flights)
+  {
+    int p = partition(flights.get(0).dayOfMonth);
+    Query writer = connections[p];
+    try {
+      return writers[p].submit(() -> writer.book(user, itineraryId, flights, reservationIds)).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      e.getCause().printStackTrace();
+    }
+    return "Booking failed\n";
+  }
+
+  /**
+   * Starts reservation IDs over, after the customer tables were cleared.
+   */
+  public void reset()
+  {
+    reservationIds.committing.lock();
+    try {
+      reservationIds.last = 0;
+    } finally {
+      reservationIds.committing.unlock();
+    }
+  }
+}
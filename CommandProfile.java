@@ -0,0 +1,161 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the time of one command went, as shown by {@code profile <command>}.
+ *
+ * While a profile is active, Query reports every statement it runs: its SQL, the parameters where it
+ * knows them, the time of the round trip plus every fetch of more rows, and the number of rows. Steps
+ * that run in Java, like merging direct and one-stop itineraries and rendering the result, are reported
+ * as phases, and searches add the plan the database actually used for them, one per search statement.
+ * Getting a plan runs the statement again, so plans are only fetched once the timings are taken.
+ */
+public class CommandProfile
+{
+  /**
+   * Fetches the plan of a statement that ran.
+   */
+  interface PlanSource
+  {
+    String plan() throws SQLException;
+  }
+
+  private static class Step
+  {
+    final String sql;
+    final String parameters;
+    long nanos;
+    long rows;
+
+    Step(String sql, String parameters)
+    {
+      this.sql = sql;
+      this.parameters = parameters;
+    }
+  }
+
+  private final long start = System.nanoTime();
+  private final List<Step> steps = new ArrayList<>();
+  private final Map<String, Long> phases = new LinkedHashMap<>();
+  private final Map<String, PlanSource> plans = new LinkedHashMap<>();
+  // parameters bound for the next statement, if the caller told
+  private String parameters;
+
+  /**
+   * Tells the parameters of the statement about to run.
+   */
+  void parameters(Object... values)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (Object v : values) {
+      if (sb.length() > 0)
+        sb.append(", ");
+      sb.append(v instanceof String ? "'" + v + "'" : String.valueOf(v));
+    }
+    parameters = sb.toString();
+  }
+
+  void clearParameters()
+  {
+    parameters = null;
+  }
+
+  /**
+   * Records a query whose execution took {@code nanos}, and the fetches of its rows as they are read.
+   *
+   * @return {@code rs}, counting its rows until it is closed
+   */
+  ResultSet track(ResultSet rs, String sql, long nanos)
+  {
+    Step step = add(sql, nanos);
+    return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+            (proxy, method, args) -> {
+              boolean next = method.getName().equals("next");
+              long t = next ? System.nanoTime() : 0;
+              try {
+                Object result = method.invoke(rs, args);
+                if (next) {
+                  step.nanos += System.nanoTime() - t;
+                  if ((Boolean) result)
+                    step.rows++;
+                }
+                return result;
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+            });
+  }
+
+  /**
+   * Records an update that took {@code nanos} and changed {@code rows} rows.
+   */
+  void updated(String sql, long nanos, int rows)
+  {
+    add(sql, nanos).rows = rows;
+  }
+
+  private Step add(String sql, long nanos)
+  {
+    Step step = new Step(sql, parameters);
+    step.nanos = nanos;
+    parameters = null;
+    steps.add(step);
+    return step;
+  }
+
+  /**
+   * Adds {@code nanos} to the Java side phase {@code name}.
+   */
+  void phase(String name, long nanos)
+  {
+    phases.merge(name, nanos, Long::sum);
+  }
+
+  /**
+   * Adds the plan of the statement recorded last, to be fetched by {@code source} after the timings.
+   */
+  void plan(String label, PlanSource source)
+  {
+    plans.put("step " + steps.size() + ", " + label, source);
+  }
+
+  /**
+   * @return the breakdown, to follow the command's response
+   */
+  String report()
+  {
+    long total = System.nanoTime() - start;
+    long database = 0;
+    StringBuilder sb = new StringBuilder("--- profile ---\n");
+    for (int i = 0; i < steps.size(); i++) {
+      Step s = steps.get(i);
+      database += s.nanos;
+      sb.append(String.format("%3d. %9.3f ms %7d rows  %s%n", i + 1, s.nanos / 1e6, s.rows,
+              s.sql.length() > 120 ? s.sql.substring(0, 120) + "..." : s.sql));
+      if (s.parameters != null)
+        sb.append("       parameters: ").append(s.parameters).append('\n');
+    }
+    for (Map.Entry<String, Long> e : phases.entrySet())
+      sb.append(String.format("     %9.3f ms  %s%n", e.getValue() / 1e6, e.getKey()));
+    sb.append(String.format("total %.3f ms, %d statements, %.3f ms in the database%n", total / 1e6, steps.size(),
+            database / 1e6));
+    for (Map.Entry<String, PlanSource> e : plans.entrySet()) {
+      String plan;
+      try {
+        plan = e.getValue().plan();
+      } catch (SQLException ex) {
+        plan = "not available: " + ex.getMessage();
+      }
+      sb.append("plan of ").append(e.getKey()).append(":\n").append(plan);
+      if (!plan.endsWith("\n"))
+        sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
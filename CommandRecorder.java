@@ -0,0 +1,279 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the commands FlightService executes, with the session that ran them, when they started and how
+ * long they took, so that a production command stream can be replayed later with {@link CommandReplay}.
+ *
+ * Sessions only encode a record and offer it to a bounded queue; a writer thread appends the records to
+ * the file through a large buffer. When the writer can't keep up, records are dropped and counted rather
+ * than slowing sessions down. Enabled with -Drecord=file.
+ *
+ * The file starts with {@link #MAGIC} and the wall clock time of the recording's start in milliseconds.
+ * Each record is a series of unsigned LEB128 varints: session id, start in microseconds since the start
+ * of the recording, latency in microseconds, and the length of the command in UTF-8 bytes, followed by
+ * the bytes. Passwords are never written: logins and creates are recorded with {@link #REDACTED} in
+ * their place.
+ */
+public class CommandRecorder
+{
+  static final byte[] MAGIC = { 'F', 'S', 'R', 'E', 'C', '1' };
+  // what a recording holds instead of the password of a login or create
+  static final String REDACTED = "*";
+
+  /**
+   * One recorded command.
+   */
+  static final class Record
+  {
+    final int session;
+    final long startMicros;
+    final long latencyMicros;
+    final String command;
+
+    Record(int session, long startMicros, long latencyMicros, String command)
+    {
+      this.session = session;
+      this.startMicros = startMicros;
+      this.latencyMicros = latencyMicros;
+      this.command = command;
+    }
+  }
+
+  private static final CommandRecorder INSTANCE = open(System.getProperty("record"));
+
+  private final OutputStream out;
+  private final long recordingStart = System.nanoTime();
+  private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(Integer.getInteger("record.queue", 65536));
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread writer;
+  private volatile boolean closed;
+
+  /**
+   * @return the recorder started by -Drecord, or null
+   */
+  public static CommandRecorder get()
+  {
+    return INSTANCE;
+  }
+
+  private static CommandRecorder open(String filename)
+  {
+    if (filename == null)
+      return null;
+    try {
+      CommandRecorder recorder = new CommandRecorder(new FileOutputStream(filename));
+      Runtime.getRuntime().addShutdownHook(new Thread(recorder::close));
+      return recorder;
+    } catch (IOException e) {
+      System.err.println("cannot record to " + filename + ": " + e);
+      return null;
+    }
+  }
+
+  public CommandRecorder(OutputStream out) throws IOException
+  {
+    this.out = new BufferedOutputStream(out, 1 << 16);
+    this.out.write(MAGIC);
+    writeVarLong(this.out, System.currentTimeMillis());
+
+    writer = new Thread(this::drain, "command-recorder");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * @return System.nanoTime() for the start of a command
+   */
+  public long start()
+  {
+    return System.nanoTime();
+  }
+
+  /**
+   * Records {@code command}, which session {@code session} started at {@code startNanos} and which just finished.
+   */
+  public void record(int session, long startNanos, CharSequence command)
+  {
+    long end = System.nanoTime();
+    byte[] text = command.toString().getBytes(StandardCharsets.UTF_8);
+    byte[] record = new byte[4 * 10 + text.length];
+    int pos = putVarLong(record, 0, session);
+    // a command already running when recording started counts from the start
+    pos = putVarLong(record, pos, Math.max(0, startNanos - recordingStart) / 1000);
+    pos = putVarLong(record, pos, (end - startNanos) / 1000);
+    pos = putVarLong(record, pos, text.length);
+    System.arraycopy(text, 0, record, pos, text.length);
+    pos += text.length;
+
+    byte[] exact = new byte[pos];
+    System.arraycopy(record, 0, exact, 0, pos);
+    if (closed || !queue.offer(exact))
+      dropped.incrementAndGet();
+  }
+
+  /**
+   * @return the command {@code tokens} was parsed from, with tokens that contain spaces quoted again and
+   * the password of a login or create replaced by {@link #REDACTED}
+   */
+  static String commandLine(CommandTokenizer tokens)
+  {
+    return commandLine(tokens, REDACTED);
+  }
+
+  /**
+   * @return the command {@code tokens} was parsed from, with the password of a login or create replaced
+   * by {@code password}
+   */
+  static String commandLine(CommandTokenizer tokens, String password)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < tokens.count(); i++) {
+      if (i > 0)
+        sb.append(' ');
+      String t = i == 2 && hasPassword(tokens) ? password : tokens.token(i);
+      if (t.indexOf(' ') >= 0 || t.indexOf('\t') >= 0)
+        sb.append('"').append(t).append('"');
+      else
+        sb.append(t);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return whether the third token of the command in {@code tokens} is a password
+   */
+  static boolean hasPassword(CommandTokenizer tokens)
+  {
+    return tokens.command() == CommandTokenizer.LOGIN || tokens.command() == CommandTokenizer.CREATE;
+  }
+
+  /**
+   * @return records that were dropped because the writer fell behind
+   */
+  public long dropped()
+  {
+    return dropped.get();
+  }
+
+  /**
+   * Writes out what is queued and closes the file.
+   */
+  public void close()
+  {
+    closed = true;
+    writer.interrupt();
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void drain()
+  {
+    List<byte[]> batch = new ArrayList<>();
+    try {
+      while (true) {
+        byte[] first;
+        try {
+          first = queue.poll(100, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          break;
+        }
+        if (first == null) {
+          out.flush();
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch);
+        for (byte[] record : batch)
+          out.write(record);
+        batch.clear();
+      }
+      queue.drainTo(batch);
+      for (byte[] record : batch)
+        out.write(record);
+      out.close();
+      if (dropped.get() > 0)
+        System.err.println("command recorder dropped " + dropped.get() + " records");
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Reads a recording.
+   *
+   * @return the wall clock start of the recording in milliseconds
+   */
+  static long read(InputStream in, List<Record> records) throws IOException
+  {
+    DataInputStream data = new DataInputStream(in);
+    byte[] magic = new byte[MAGIC.length];
+    data.readFully(magic);
+    for (int i = 0; i < MAGIC.length; i++)
+      if (magic[i] != MAGIC[i])
+        throw new IOException("not a command recording");
+    long startMillis = readVarLong(data);
+    while (true) {
+      int session;
+      try {
+        session = (int) readVarLong(data);
+      } catch (EOFException e) {
+        break;
+      }
+      try {
+        long start = readVarLong(data);
+        long latency = readVarLong(data);
+        byte[] text = new byte[(int) readVarLong(data)];
+        data.readFully(text);
+        records.add(new Record(session, start, latency, new String(text, StandardCharsets.UTF_8)));
+      } catch (EOFException e) {
+        // the last record was cut short
+        break;
+      }
+    }
+    return startMillis;
+  }
+
+  static int putVarLong(byte[] buf, int pos, long v)
+  {
+    while ((v & ~0x7fL) != 0) {
+      buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    buf[pos++] = (byte) v;
+    return pos;
+  }
+
+  static void writeVarLong(OutputStream out, long v) throws IOException
+  {
+    byte[] buf = new byte[10];
+    out.write(buf, 0, putVarLong(buf, 0, v));
+  }
+
+  static long readVarLong(DataInputStream in) throws IOException
+  {
+    long v = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      v |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return v;
+    }
+    throw new IOException("malformed varint");
+  }
+}
@@ -0,0 +1,125 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the LEB128 varints of {@link CommandRecorder} and reading back what it recorded.
+ */
+public class CommandRecorderTest
+{
+  private static DataInputStream input (byte[] bytes, int length)
+  {
+    return new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+  }
+
+  private static void assertRoundTrip (long v, int expectedLength) throws IOException
+  {
+    byte[] buf = new byte[10];
+    int length = CommandRecorder.putVarLong(buf, 0, v);
+    if (expectedLength > 0)
+      assertEquals("length of " + v, expectedLength, length);
+    DataInputStream in = input(buf, length);
+    assertEquals(v, CommandRecorder.readVarLong(in));
+    assertEquals(0, in.available());
+  }
+
+  @Test
+  public void varintsRoundTrip () throws IOException
+  {
+    assertRoundTrip(0, 1);
+    assertRoundTrip(1, 1);
+    assertRoundTrip(127, 1);
+    assertRoundTrip(128, 2);
+    assertRoundTrip(16383, 2);
+    assertRoundTrip(16384, 3);
+    assertRoundTrip(Integer.MAX_VALUE, 5);
+    assertRoundTrip(0xffffffffL, 5);
+    assertRoundTrip(1L << 35, 6);
+    assertRoundTrip(Long.MAX_VALUE, 9);
+    // negative values are written as their unsigned 64 bits
+    assertRoundTrip(-1, 10);
+    assertRoundTrip(Long.MIN_VALUE, 10);
+
+    Random r = new Random(40);
+    for (int i = 0; i < 10000; i++)
+      assertRoundTrip(r.nextLong() >>> r.nextInt(64), 0);
+  }
+
+  @Test
+  public void varintsFollowEachOther () throws IOException
+  {
+    long[] values = { 300, 0, 1L << 40, 5 };
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (long v : values)
+      CommandRecorder.writeVarLong(out, v);
+    // 300 is the example of the LEB128 spec: 0xac 0x02
+    assertEquals((byte) 0xac, out.toByteArray()[0]);
+    assertEquals(0x02, out.toByteArray()[1]);
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+    for (long v : values)
+      assertEquals(v, CommandRecorder.readVarLong(in));
+  }
+
+  @Test
+  public void badVarintsAreRejected () throws IOException
+  {
+    try {
+      CommandRecorder.readVarLong(input(new byte[] { (byte) 0x80, (byte) 0x80 }, 2));
+      fail("read a varint that was cut short");
+    } catch (EOFException e) {
+      // expected
+    }
+    byte[] endless = new byte[11];
+    Arrays.fill(endless, (byte) 0x80);
+    try {
+      CommandRecorder.readVarLong(input(endless, endless.length));
+      fail("read a varint longer than 64 bits");
+    } catch (EOFException e) {
+      fail("should be reported as malformed");
+    } catch (IOException e) {
+      assertEquals("malformed varint", e.getMessage());
+    }
+  }
+
+  @Test
+  public void readsWhatItRecorded () throws IOException
+  {
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    CommandRecorder recorder = new CommandRecorder(file);
+    long start = recorder.start();
+    recorder.record(1, start, "create alice * 100");
+    recorder.record(200, recorder.start(), "search \"Z\u00fcrich ZH\" \"Boston MA\" 1 1 1");
+    recorder.record(1, start, "book 0");
+    recorder.close();
+
+    byte[] bytes = file.toByteArray();
+    List<CommandRecorder.Record> records = new ArrayList<>();
+    long millis = CommandRecorder.read(new ByteArrayInputStream(bytes), records);
+    assertTrue(Math.abs(System.currentTimeMillis() - millis) < 60_000);
+    assertEquals(3, records.size());
+    assertEquals(1, records.get(0).session);
+    assertEquals("create alice * 100", records.get(0).command);
+    assertEquals(200, records.get(1).session);
+    assertEquals("search \"Z\u00fcrich ZH\" \"Boston MA\" 1 1 1", records.get(1).command);
+    assertEquals("book 0", records.get(2).command);
+    assertTrue(records.get(2).latencyMicros >= records.get(0).latencyMicros);
+
+    // a recording cut short in its last record keeps the whole ones
+    records.clear();
+    CommandRecorder.read(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 2)), records);
+    assertEquals(2, records.size());
+  }
+}
@@ -0,0 +1,178 @@
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+
+/**
+ * Replays a recording made with -Drecord against this build and compares the latencies.
+ *
+ * Every recorded session gets its own Query session, which runs the session's commands in order, each
+ * one no earlier than its recorded start divided by -Dspeed. The latency of every command is compared
+ * per command type with the recording, or with a baseline: the output of an earlier replay, written with
+ * -Dout, which is itself a recording. Replaying the same capture on two builds with -Dout and then
+ * -Dbaseline shows what changed between them.
+ *
+ *   java -Ddbconfig=dbconn.local.properties CommandReplay capture.rec
+ *   -Dspeed=1          1 replays at the recorded rate, 10 ten times faster, 0 as fast as possible
+ *   -Dout=file         record the replayed latencies
+ *   -Dbaseline=file    compare with this recording instead of the one replayed
+ *   -Dpermits=32       sessions talking to the database at once
+ *   -Dclear=false      clear the customer tables before starting
+ *   -Dpassword=replay  password of every login and create whose password was redacted in the recording
+ *
+ * Recordings don't hold passwords, so every user is created and logs in with the same password; a
+ * recorded login that failed on a wrong password succeeds when replayed.
+ */
+public class CommandReplay
+{
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 1) {
+      System.err.println("usage: java CommandReplay recording");
+      System.exit(1);
+    }
+    double speed = Double.parseDouble(System.getProperty("speed", "1"));
+    List<CommandRecorder.Record> records = read(args[0]);
+    List<CommandRecorder.Record> baseline = System.getProperty("baseline") != null
+            ? read(System.getProperty("baseline")) : records;
+
+    if (Boolean.getBoolean("clear")) {
+      Query q = new Query(FlightService.DBCONFIG_FILENAME);
+      q.openConnection();
+      q.prepareStatements();
+      q.clearTables();
+      q.closeConnection();
+    }
+
+    CommandRecorder out = System.getProperty("out") != null
+            ? new CommandRecorder(new FileOutputStream(System.getProperty("out"))) : null;
+    List<CommandRecorder.Record> replayed = replay(records, speed, Integer.getInteger("permits", 32), out);
+    if (out != null)
+      out.close();
+
+    System.out.println(String.format("%-13s %7s %11s %11s %11s %11s %9s", "command", "n", "base p50", "base p99",
+            "p50", "p99", "p99 diff"));
+    Map<String, long[]> before = latencies(baseline);
+    for (Map.Entry<String, long[]> e : latencies(replayed).entrySet()) {
+      long[] now = e.getValue();
+      long[] base = before.getOrDefault(e.getKey(), new long[0]);
+      long p99 = percentile(now, 0.99);
+      long baseP99 = percentile(base, 0.99);
+      System.out.println(String.format("%-13s %7d %9.2fms %9.2fms %9.2fms %9.2fms %8s", e.getKey(), now.length,
+              percentile(base, 0.5) / 1e3, baseP99 / 1e3, percentile(now, 0.5) / 1e3, p99 / 1e3,
+              baseP99 > 0 ? String.format("%+.0f%%", 100.0 * (p99 - baseP99) / baseP99) : "-"));
+    }
+  }
+
+  static List<CommandRecorder.Record> read(String filename) throws IOException
+  {
+    List<CommandRecorder.Record> records = new ArrayList<>();
+    try (InputStream in = new BufferedInputStream(new FileInputStream(filename))) {
+      CommandRecorder.read(in, records);
+    }
+    return records;
+  }
+
+  /**
+   * Runs {@code records} session by session, each command no earlier than its start divided by {@code speed}.
+   *
+   * @return the replayed commands with the latencies measured now
+   */
+  static List<CommandRecorder.Record> replay(List<CommandRecorder.Record> records, double speed, int permits,
+                                             CommandRecorder out) throws Exception
+  {
+    Map<Integer, List<CommandRecorder.Record>> sessions = new LinkedHashMap<>();
+    for (CommandRecorder.Record r : records)
+      sessions.computeIfAbsent(r.session, s -> new ArrayList<>()).add(r);
+    for (List<CommandRecorder.Record> commands : sessions.values())
+      commands.sort((a, b) -> Long.compare(a.startMicros, b.startMicros));
+
+    String password = System.getProperty("password", "replay");
+    SessionExecutor executor = new SessionExecutor(permits);
+    long begin = System.nanoTime();
+    List<Future<List<CommandRecorder.Record>>> futures = new ArrayList<>();
+    for (List<CommandRecorder.Record> commands : sessions.values()) {
+      futures.add(executor.submit(() -> {
+        Query q = new Query(FlightService.DBCONFIG_FILENAME);
+        q.openConnection();
+        q.prepareStatements();
+        CommandTokenizer tokens = new CommandTokenizer();
+        List<CommandRecorder.Record> done = new ArrayList<>();
+        try {
+          for (CommandRecorder.Record r : commands) {
+            String command = withPassword(tokens, r.command, password);
+            if (speed > 0) {
+              long due = begin + (long) (r.startMicros * 1000 / speed);
+              long wait = due - System.nanoTime();
+              if (wait > 0)
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            // from when the command gets its permit, as the recording measured it
+            long start = executor.db(() -> {
+              long s = System.nanoTime();
+              FlightService.execute(q, command);
+              return s;
+            });
+            long end = System.nanoTime();
+            done.add(new CommandRecorder.Record(q.sessionId(), (start - begin) / 1000, (end - start) / 1000, r.command));
+            if (out != null)
+              out.record(q.sessionId(), start, r.command);
+          }
+        } finally {
+          q.closeConnection();
+        }
+        return done;
+      }));
+    }
+
+    List<CommandRecorder.Record> replayed = new ArrayList<>();
+    for (Future<List<CommandRecorder.Record>> f : futures)
+      replayed.addAll(f.get());
+    executor.shutdown();
+    return replayed;
+  }
+
+  /**
+   * @return {@code command}, with {@code password} for the password if the recording redacted it
+   */
+  static String withPassword(CommandTokenizer tokens, String command, String password)
+  {
+    tokens.parse(command);
+    if (!CommandRecorder.hasPassword(tokens) || tokens.count() < 3 || !tokens.is(2, CommandRecorder.REDACTED))
+      return command;
+    return CommandRecorder.commandLine(tokens, password);
+  }
+
+  /**
+   * @return the sorted latencies of each command type, in microseconds
+   */
+  static Map<String, long[]> latencies(List<CommandRecorder.Record> records)
+  {
+    Map<String, List<Long>> byCommand = new TreeMap<>();
+    for (CommandRecorder.Record r : records) {
+      String[] tokens = FlightService.tokenize(r.command);
+      String command = tokens.length == 0 ? "(empty)" : tokens[0];
+      byCommand.computeIfAbsent(command, c -> new ArrayList<>()).add(r.latencyMicros);
+    }
+    Map<String, long[]> sorted = new LinkedHashMap<>();
+    for (Map.Entry<String, List<Long>> e : byCommand.entrySet()) {
+      long[] values = e.getValue().stream().mapToLong(Long::longValue).toArray();
+      Arrays.sort(values);
+      sorted.put(e.getKey(), values);
+    }
+    return sorted;
+  }
+
+  static long percentile(long[] sorted, double p)
+  {
+    return sorted.length == 0 ? 0 : LoadGenerator.Latencies.percentile(sorted, p);
+  }
+}
@@ -0,0 +1,308 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits a command line into tokens in a single pass, without regular expressions.
+ *
+ * Tokens are separated by whitespace; a token that starts with a double quote and has a closing
+ * quote later on the line extends up to that quote, so "Seattle WA" is one token. This is the same
+ * split that the old regex based tokenizer made.
+ *
+ * A tokenizer keeps its buffers between calls, so an instance that is reused (one per thread) does not
+ * allocate while parsing. Tokens are only turned into Strings when a caller asks for one.
+ */
+public class CommandTokenizer
+{
+  // command ids returned by command()
+  public static final int UNKNOWN = 0;
+  public static final int LOGIN = 1;
+  public static final int CREATE = 2;
+  public static final int SEARCH = 3;
+  public static final int BOOK = 4;
+  public static final int PAY = 5;
+  public static final int RESERVATIONS = 6;
+  public static final int CANCEL = 7;
+  public static final int QUIT = 8;
+  public static final int PROFILE = 9;
+
+  private static final String[] COMMANDS = {
+    null, "login", "create", "search", "book", "pay", "reservations", "cancel", "quit", "profile"
+  };
+
+  // returned by parseInt when a token is not an int
+  public static final int NOT_AN_INT = Integer.MIN_VALUE;
+
+  private char[] buf = new char[256];
+  private int length;
+
+  private int[] starts = new int[8];
+  private int[] ends = new int[8];
+  private int count;
+
+  /**
+   * Tokenizes {@code line}.
+   *
+   * @return this tokenizer
+   */
+  public CommandTokenizer parse(CharSequence line)
+  {
+    int n = line.length();
+    ensureCapacity(n);
+    for (int i = 0; i < n; ++i)
+      buf[i] = line.charAt(i);
+    length = n;
+    split();
+    return this;
+  }
+
+  /**
+   * Tokenizes the next line in {@code in}, which holds UTF-8 text, as read from a socket.
+   * On success the buffer's position is moved past the line and its terminating newline.
+   *
+   * @return false, leaving the buffer untouched, if the buffer does not hold a complete line yet
+   */
+  public boolean parseLine(ByteBuffer in)
+  {
+    int start = in.position();
+    int end = -1;
+    for (int i = start; i < in.limit(); ++i)
+    {
+      if (in.get(i) == '\n')
+      {
+        end = i;
+        break;
+      }
+    }
+    if (end < 0)
+      return false;
+
+    ensureCapacity(end - start);
+    length = decodeUtf8(in, start, end);
+    in.position(end + 1);
+    split();
+    return true;
+  }
+
+  /**
+   * @return number of tokens on the line
+   */
+  public int count()
+  {
+    return count;
+  }
+
+  /**
+   * @return token {@code i} as a String
+   */
+  public String token(int i)
+  {
+    return new String(buf, starts[i], ends[i] - starts[i]);
+  }
+
+  /**
+   * @return true if token {@code i} is exactly {@code s}
+   */
+  public boolean is(int i, String s)
+  {
+    int n = ends[i] - starts[i];
+    if (n != s.length())
+      return false;
+    for (int j = 0; j < n; ++j)
+      if (buf[starts[i] + j] != s.charAt(j))
+        return false;
+    return true;
+  }
+
+  /**
+   * @return the id of the command named by the first token, {@link #UNKNOWN} if there is none
+   */
+  public int command()
+  {
+    if (count == 0)
+      return UNKNOWN;
+    for (int c = 1; c < COMMANDS.length; ++c)
+      if (is(0, COMMANDS[c]))
+        return c;
+    return UNKNOWN;
+  }
+
+  /**
+   * Parses token {@code i} as a decimal int with an optional sign, as Integer.parseInt does.
+   *
+   * @return the value, or {@link #NOT_AN_INT} if the token is not an int or does not fit in one
+   */
+  public int parseInt(int i)
+  {
+    int p = starts[i];
+    int end = ends[i];
+    if (p == end)
+      return NOT_AN_INT;
+
+    boolean negative = false;
+    if (buf[p] == '-' || buf[p] == '+')
+    {
+      negative = buf[p] == '-';
+      if (++p == end)
+        return NOT_AN_INT;
+    }
+
+    long value = 0;
+    for (; p < end; ++p)
+    {
+      int d = buf[p] - '0';
+      if (d < 0 || d > 9 || (value = value * 10 + d) > Integer.MAX_VALUE)
+        return NOT_AN_INT;
+    }
+    // Integer.MIN_VALUE itself is not accepted since it doubles as the error marker
+    return (int) (negative ? -value : value);
+  }
+
+  /**
+   * Drops the first token, so that the line holds the command a wrapper like profile was given.
+   *
+   * @return this tokenizer
+   */
+  public CommandTokenizer dropFirst()
+  {
+    if (count > 0)
+    {
+      System.arraycopy(starts, 1, starts, 0, count - 1);
+      System.arraycopy(ends, 1, ends, 0, count - 1);
+      count--;
+    }
+    return this;
+  }
+
+  /**
+   * @return all tokens as Strings
+   */
+  public String[] tokens()
+  {
+    String[] tokens = new String[count];
+    for (int i = 0; i < count; ++i)
+      tokens[i] = token(i);
+    return tokens;
+  }
+
+  private void split()
+  {
+    count = 0;
+    int p = 0;
+    while (p < length)
+    {
+      char c = buf[p];
+      if (isSpace(c))
+      {
+        p++;
+        continue;
+      }
+
+      if (c == '"')
+      {
+        int close = indexOfQuote(p + 1);
+        if (close >= 0)
+        {
+          add(p + 1, close);
+          p = close + 1;
+          continue;
+        }
+      }
+
+      int start = p;
+      while (p < length && !isSpace(buf[p]))
+        p++;
+      add(start, p);
+    }
+  }
+
+  private int indexOfQuote(int from)
+  {
+    for (int i = from; i < length; ++i)
+      if (buf[i] == '"')
+        return i;
+    return -1;
+  }
+
+  private void add(int start, int end)
+  {
+    if (count == starts.length)
+    {
+      starts = Arrays.copyOf(starts, count * 2);
+      ends = Arrays.copyOf(ends, count * 2);
+    }
+    starts[count] = start;
+    ends[count] = end;
+    count++;
+  }
+
+  private static boolean isSpace(char c)
+  {
+    // the characters matched by \s
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  private void ensureCapacity(int n)
+  {
+    if (buf.length < n)
+      buf = new char[Math.max(n, buf.length * 2)];
+  }
+
+  /**
+   * Decodes bytes [start, end) of {@code in} into buf, replacing malformed sequences with U+FFFD.
+   *
+   * @return number of chars written
+   */
+  private int decodeUtf8(ByteBuffer in, int start, int end)
+  {
+    int n = 0;
+    int p = start;
+    while (p < end)
+    {
+      int b = in.get(p++) & 0xff;
+      if (b < 0x80)
+      {
+        buf[n++] = (char) b;
+        continue;
+      }
+
+      int extra;
+      int cp;
+      if (b < 0xc0 || b >= 0xf8) { buf[n++] = '\uFFFD'; continue; }
+      else if (b >= 0xf0) { extra = 3; cp = b & 0x07; }
+      else if (b >= 0xe0) { extra = 2; cp = b & 0x0f; }
+      else { extra = 1; cp = b & 0x1f; }
+
+      if (p + extra > end)
+      {
+        buf[n++] = '\uFFFD';
+        break;
+      }
+      boolean valid = true;
+      for (int k = 0; k < extra; ++k)
+      {
+        int cont = in.get(p + k) & 0xff;
+        if ((cont & 0xc0) != 0x80)
+        {
+          valid = false;
+          break;
+        }
+        cp = (cp << 6) | (cont & 0x3f);
+      }
+      if (!valid)
+      {
+        buf[n++] = '\uFFFD';
+        continue;
+      }
+      p += extra;
+
+      if (cp >= 0x10000)
+      {
+        buf[n++] = Character.highSurrogate(cp);
+        buf[n++] = Character.lowSurrogate(cp);
+      }
+      else
+        buf[n++] = (char) cp;
+    }
+    return n;
+  }
+}
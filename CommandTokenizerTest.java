@@ -0,0 +1,141 @@
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link CommandTokenizer} against the regex split it replaced.
+ */
+public class CommandTokenizerTest
+{
+  /**
+   * The tokenizer FlightService had before CommandTokenizer.
+   */
+  static String[] regexSplit (String command)
+  {
+    Matcher m = Pattern.compile("\"([^\"]*)\"|(\\S+)").matcher(command);
+    List<String> tokens = new ArrayList<>();
+    while (m.find()) {
+      if (m.group(1) != null)
+        tokens.add(m.group(1));
+      else
+        tokens.add(m.group(2));
+    }
+    return tokens.toArray(new String[0]);
+  }
+
+  private final CommandTokenizer tokens = new CommandTokenizer();
+
+  private void assertSameSplit (String line)
+  {
+    assertArrayEquals("[" + line + "]", regexSplit(line), tokens.parse(line).tokens());
+  }
+
+  @Test
+  public void splitsLikeTheRegex ()
+  {
+    String[] lines = {
+      "", " ", "quit", "  login  user1   pw\t", "search \"Seattle WA\" \"Boston MA\" 1 1 1",
+      "search \"Seattle WA\"\"Boston MA\" 0 1 1", "\"unclosed quote", "a\"b c\"", "\"\" x", "\"a b\"c",
+      "tab\tand\u000Bvertical\fform\rfeed", "non\u00a0breaking space", "\"Z\u00fcrich ZH\" \"\"",
+    };
+    for (String line : lines)
+      assertSameSplit(line);
+  }
+
+  @Test
+  public void splitsRandomLinesLikeTheRegex ()
+  {
+    char[] alphabet = { 'a', 'b', '1', '"', '"', ' ', ' ', '\t', '\u00e9', '-' };
+    Random r = new Random(31);
+    for (int n = 0; n < 20000; n++) {
+      char[] line = new char[r.nextInt(40)];
+      for (int i = 0; i < line.length; i++)
+        line[i] = alphabet[r.nextInt(alphabet.length)];
+      assertSameSplit(new String(line));
+    }
+  }
+
+  @Test
+  public void growsPastItsBuffers ()
+  {
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < 100; i++)
+      line.append("token").append(i).append(" \"quoted ").append(i).append("\" ");
+    assertSameSplit(line.toString());
+    assertSameSplit("short line after a long one");
+  }
+
+  @Test
+  public void parsesIntsLikeIntegerParseInt ()
+  {
+    String[] ints = {
+      "0", "-0", "+0", "7", "+42", "-42", "007", "2147483647", "-2147483647",
+      "2147483648", "-2147483649", "99999999999999999999", "", "-", "+", "--1", "1-", "1.5", "12a", "0x10", "1e3",
+    };
+    for (String s : ints) {
+      int expected;
+      try {
+        expected = Integer.parseInt(s);
+      } catch (NumberFormatException e) {
+        expected = CommandTokenizer.NOT_AN_INT;
+      }
+      tokens.parse("book \"" + s + "\"");
+      assertEquals("[" + s + "]", expected, tokens.parseInt(1));
+    }
+    // the one int that can't be told apart from the error marker
+    assertEquals(CommandTokenizer.NOT_AN_INT, tokens.parse("book -2147483648").parseInt(1));
+  }
+
+  @Test
+  public void knowsTheCommands ()
+  {
+    assertEquals(CommandTokenizer.SEARCH, tokens.parse("  search a b 1 1 1").command());
+    assertEquals(CommandTokenizer.UNKNOWN, tokens.parse("").command());
+    assertEquals(CommandTokenizer.UNKNOWN, tokens.parse("Search").command());
+    assertEquals(CommandTokenizer.UNKNOWN, tokens.parse("quitting").command());
+    assertEquals(CommandTokenizer.PAY, tokens.parse("profile pay 1").dropFirst().command());
+    assertEquals(2, tokens.count());
+    assertTrue(tokens.is(1, "1"));
+  }
+
+  @Test
+  public void parsesUtf8Lines ()
+  {
+    String first = "search \"Z\u00fcrich ZH\" \"\u6771\u4eac\" 0 1 \ud83d\ude80";
+    String second = "login caf\u00e9 pw";
+    ByteBuffer in = ByteBuffer.wrap((first + "\n" + second + "\npartial").getBytes(StandardCharsets.UTF_8));
+
+    assertTrue(tokens.parseLine(in));
+    assertArrayEquals(regexSplit(first), tokens.tokens());
+    assertTrue(tokens.parseLine(in));
+    assertArrayEquals(regexSplit(second), tokens.tokens());
+
+    // no newline yet: nothing is consumed
+    int position = in.position();
+    assertFalse(tokens.parseLine(in));
+    assertEquals(position, in.position());
+  }
+
+  @Test
+  public void replacesMalformedUtf8 ()
+  {
+    byte[] bytes = {
+      'a', (byte) 0x80, 'b', ' ',             // stray continuation byte
+      'c', (byte) 0xc3, 'd', ' ',             // lead byte without its continuation
+      'e', (byte) 0xe6, (byte) 0x9d, '\n',    // sequence cut off by the end of the line
+    };
+    assertTrue(tokens.parseLine(ByteBuffer.wrap(bytes)));
+    assertArrayEquals(new String[] { "a\ufffdb", "c\ufffdd", "e\ufffd" }, tokens.tokens());
+  }
+}
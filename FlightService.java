@@ -1,13 +1,16 @@
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class FlightService
 {
-  public static final String DBCONFIG_FILENAME = "dbconn.properties";
+  // override with -Ddbconfig=dbconn.local.properties to run against a local embedded database
+  public static final String DBCONFIG_FILENAME = System.getProperty("dbconfig", "dbconn.properties");
 
   public static void usage()
   {
@@ -16,138 +19,232 @@ public class FlightService
     System.out.println(" *** Please enter one of the following commands *** ");
     System.out.println("> create <username> <password> <initial amount>");
     System.out.println("> login <username> <password>");
-    System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+    System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries> [duration|price|weighted[:w]|pareto]");
     System.out.println("> book <itinerary id>");
     System.out.println("> pay <reservation id>");
     System.out.println("> reservations");
     System.out.println("> cancel <reservation id>");
+    System.out.println("> profile <command>");
     System.out.println("> quit");
   }
 
+  // tokenizers keep their buffers, so every thread reuses its own
+  private static final ThreadLocal<CommandTokenizer> tokenizers = ThreadLocal.withInitial(CommandTokenizer::new);
+
   public static String[] tokenize(String command)
   {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
-    List<String> tokens = new ArrayList<>();
-    while (m.find())
-    {
-      if (m.group(1) != null)
-        tokens.add(m.group(1));
-      else
-        tokens.add(m.group(2));
-    }
-    return tokens.toArray(new String[0]);
+    return tokenizers.get().parse(command).tokens();
   }
 
   public static String execute (Query q, String command)
   {
-    String response;
+    return execute(q, tokenizers.get().parse(command));
+  }
 
-    String[] tokens = tokenize(command.trim());
-    if (tokens.length == 0)
-      response = "Please enter a command";
+  /**
+   * Runs {@code command} on {@code q} for {@code owner}, whose user admission control charges for it and
+   * under whose session it is recorded, e.g. a search that a batch sends on one of its reader connections.
+   */
+  public static String execute (Query q, Query owner, String command)
+  {
+    CommandTokenizer tokens = tokenizers.get().parse(command);
+    return execute(owner, tokens, refusal -> refusal, () -> run(q, tokens));
+  }
 
-    else if (tokens[0].equals("login"))
-    {
-      if (tokens.length == 3)
-      {
-        /* authenticate the user */
-        String username = tokens[1];
-        String password = tokens[2];
-        response = q.transaction_login(username, password);
-      }
-      else
-        response = "Error: Please provide a username and password";
+  /**
+   * Runs the command held by {@code tokens}, e.g. one parsed straight from a socket buffer.
+   */
+  public static String execute (Query q, CommandTokenizer tokens)
+  {
+    return execute(q, tokens, refusal -> refusal, () -> run(q, tokens));
+  }
+
+  /**
+   * Runs {@code command}, which carries out the command held by {@code tokens}, the way every command is
+   * run: recorded with -Drecord, and only if admission control lets it in.
+   *
+   * @param owner the session the command is charged to and recorded under; {@code command} may run on another
+   * @param refused turns the refusal of admission control into a response
+   */
+  static <T> T execute (Query owner, CommandTokenizer tokens, Function<String, T> refused, Supplier<T> command)
+  {
+    // the profiled command comes through here on its own
+    if (tokens.command() == CommandTokenizer.PROFILE)
+      return command.get();
+    CommandRecorder recorder = CommandRecorder.get();
+    if (recorder == null)
+      return admit(owner, tokens, refused, command);
+    long start = recorder.start();
+    T response = admit(owner, tokens, refused, command);
+    recorder.record(owner.sessionId(), start, CommandRecorder.commandLine(tokens));
+    return response;
+  }
+
+  private static <T> T admit (Query q, CommandTokenizer tokens, Function<String, T> refused, Supplier<T> command)
+  {
+    AdmissionControl admission = AdmissionControl.get();
+    if (admission == null)
+      return command.get();
+    AdmissionControl.Permit permit = admission.admit(q, tokens);
+    if (permit.refusal != null)
+      return refused.apply(permit.refusal);
+    try {
+      return command.get();
+    } finally {
+      admission.done(permit);
     }
+  }
+
+  /**
+   * The arguments of a search command, or what is wrong with them.
+   */
+  static class SearchArgs
+  {
+    String originCity;
+    String destinationCity;
+    boolean direct;
+    int day;
+    int count;
+    SearchRank rank;
+    // the response when the arguments can't be used, null otherwise
+    String error;
 
-    else if (tokens[0].equals("create"))
+    static SearchArgs parse(CommandTokenizer tokens)
     {
-      /* create a new customer */
-      if (tokens.length == 4)
+      SearchArgs a = new SearchArgs();
+      int n = tokens.count();
+      if (n == 6 || n == 7)
       {
-        String username = tokens[1];
-        String password = tokens[2];
-        int initAmount = Integer.parseInt(tokens[3]);
-        response = q.transaction_createCustomer(username, password, initAmount);
+        a.originCity = tokens.token(1);
+        a.destinationCity = tokens.token(2);
+        a.direct = tokens.is(3, "1");
+        a.day = tokens.parseInt(4);
+        a.count = tokens.parseInt(5);
+        a.rank = n == 7 ? SearchRank.parse(tokens.token(6)) : SearchRank.DURATION;
+        if (a.day == CommandTokenizer.NOT_AN_INT || a.count == CommandTokenizer.NOT_AN_INT)
+          a.error = "Failed to parse integer";
+        else if (a.rank == null)
+          a.error = "Error: unknown ranking '" + tokens.token(6) + "', use duration, price, weighted[:w] or pareto";
       }
       else
-        response = "Error: Please provide a username, password, and initial amount in the account";
+        a.error = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
+      return a;
     }
+  }
+
+  private static String run (Query q, CommandTokenizer tokens)
+  {
+    String response;
+    int n = tokens.count();
 
-    else if (tokens[0].equals("search"))
+    switch (tokens.command())
     {
-				/* search for flights */
-      if (tokens.length == 6)
-      {
-        String originCity = tokens[1];
-        String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
-        Integer day;
-        Integer count;
-        try
+      case CommandTokenizer.LOGIN:
+        if (n == 3)
         {
-          day = Integer.valueOf(tokens[4]);
-          count = Integer.valueOf(tokens[5]);
-          //System.out.println("Searching for flights");
-          //response = q.transaction_search_unsafe(originCity, destinationCity, direct, day, count);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
+          /* authenticate the user */
+          String username = tokens.token(1);
+          String password = tokens.token(2);
+          response = q.transaction_login(username, password);
         }
-        catch (NumberFormatException e) { response = "Failed to parse integer"; }
-      }
-      else
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
-    }
+        else
+          response = "Error: Please provide a username and password";
+        break;
 
-    else if (tokens[0].equals("book"))
-    {
-				/* book a flight ticket */
-      if (tokens.length == 2)
-      {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Booking itinerary.");
-        response = q.transaction_book(itinerary_id);
-      }
-      else
-        response = "Error: Please provide an itinerary_id";
-    }
+      case CommandTokenizer.CREATE:
+        /* create a new customer */
+        if (n == 4)
+        {
+          String username = tokens.token(1);
+          String password = tokens.token(2);
+          int initAmount = tokens.parseInt(3);
+          if (initAmount == CommandTokenizer.NOT_AN_INT)
+            response = "Failed to parse integer";
+          else
+            response = q.transaction_createCustomer(username, password, initAmount);
+        }
+        else
+          response = "Error: Please provide a username, password, and initial amount in the account";
+        break;
 
-    else if (tokens[0].equals("reservations"))
-    {
-				/* list all reservations */
-      response = q.transaction_reservations();
-    }
+      case CommandTokenizer.SEARCH:
+        /* search for flights */
+        SearchArgs search = SearchArgs.parse(tokens);
+        if (search.error == null)
+          response = q.transaction_search(search.originCity, search.destinationCity, search.direct, search.day,
+                  search.count, search.rank);
+        else
+          response = search.error;
+        break;
 
-    else if (tokens[0].equals("pay"))
-    {
-      /* pay for an unpaid reservation */
-      if (tokens.length == 2)
-      {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Paying reservation.");
-        response = q.transaction_pay(reservation_id);
-      }
-      else
-        response = "Error: Please provide a reservation_id";
-    }
+      case CommandTokenizer.BOOK:
+        /* book a flight ticket */
+        if (n == 2)
+        {
+          int itinerary_id = tokens.parseInt(1);
+          if (itinerary_id == CommandTokenizer.NOT_AN_INT)
+            response = "Failed to parse integer";
+          else
+            response = q.transaction_book(itinerary_id);
+        }
+        else
+          response = "Error: Please provide an itinerary_id";
+        break;
 
-    else if (tokens[0].equals("cancel"))
-    {
-				/* cancel a reservation */
-      if (tokens.length == 2)
-      {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Canceling reservation.");
-        response = q.transaction_cancel(reservation_id);
-      }
-      else
-        response = "Error: Please provide a reservation_id";
-    }
+      case CommandTokenizer.RESERVATIONS:
+        /* list all reservations */
+        response = q.transaction_reservations();
+        break;
+
+      case CommandTokenizer.PAY:
+        /* pay for an unpaid reservation */
+        if (n == 2)
+        {
+          int reservation_id = tokens.parseInt(1);
+          if (reservation_id == CommandTokenizer.NOT_AN_INT)
+            response = "Failed to parse integer";
+          else
+            response = q.transaction_pay(reservation_id);
+        }
+        else
+          response = "Error: Please provide a reservation_id";
+        break;
 
-    else if (tokens[0].equals("quit"))
-      response = "Goodbye\n";
+      case CommandTokenizer.CANCEL:
+        /* cancel a reservation */
+        if (n == 2)
+        {
+          int reservation_id = tokens.parseInt(1);
+          if (reservation_id == CommandTokenizer.NOT_AN_INT)
+            response = "Failed to parse integer";
+          else
+            response = q.transaction_cancel(reservation_id);
+        }
+        else
+          response = "Error: Please provide a reservation_id";
+        break;
 
-    else
-      response = "Error: unrecognized command '" + tokens[0] + "'";
+      case CommandTokenizer.QUIT:
+        response = "Goodbye\n";
+        break;
+
+      case CommandTokenizer.PROFILE:
+        /* run a command and show where its time went */
+        if (n < 2)
+          response = "Error: Please provide a command to profile";
+        else if (tokens.dropFirst().command() == CommandTokenizer.PROFILE)
+          response = "Error: profile can't profile itself";
+        else
+          response = q.profile(() -> execute(q, tokens));
+        break;
+
+      default:
+        if (n == 0)
+          response = "Please enter a command";
+        else
+          response = "Error: unrecognized command '" + tokens.token(0) + "'";
+        break;
+    }
 
     return response;
   }
@@ -155,14 +252,16 @@ public class FlightService
   /* REPL (Read-Execute-Print-Loop) */
   public static void menu(Query q) throws Exception
   {
+    BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
     while (true)
     {
       usage();
 
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
       System.out.print("> ");
 
       String command = r.readLine();
+      if (command == null)
+        break;
       String response = execute(q, command);
       System.out.print(response);
 
@@ -171,13 +270,46 @@ public class FlightService
     }
   }
 
+  /*
+   * Runs a script without prompts, see BatchRunner. Up to -Dbatch.readers searches (4 by default)
+   * are run at the same time.
+   */
+  public static void batch(Query q, String filename) throws Exception
+  {
+    BufferedReader in = new BufferedReader(filename == null ? new InputStreamReader(System.in) : new FileReader(filename));
+    Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+    BatchRunner runner = new BatchRunner(q, Integer.getInteger("batch.readers", 4));
+    try
+    {
+      runner.run(in, out);
+    }
+    finally
+    {
+      out.flush();
+      runner.close();
+      in.close();
+    }
+  }
+
+  /*
+   * Usage: FlightService              interactive
+   *        FlightService -batch [file]  run the commands in file, or on standard input
+   *
+   * With -Dwarmup=file or -Dwarmup=top[:n] the session first replays searches until latency settles, see WarmUp.
+   */
   public static void main(String[] args) throws Exception
   {
 		/* prepare the database connection stuff */
     Query q = new Query(DBCONFIG_FILENAME);
     q.openConnection();
     q.prepareStatements();
-    menu(q); /* menu(...) does the real work */
+    String warmup = System.getProperty("warmup");
+    if (warmup != null)
+      WarmUp.run(q, warmup);
+    if (args.length > 0 && args[0].equals("-batch"))
+      batch(q, args.length > 1 ? args[1] : null);
+    else
+      menu(q); /* menu(...) does the real work */
     q.closeConnection();
   }
 
@@ -0,0 +1,355 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Loads FLIGHTS from CSV schedule files and applies schedule changes to it while the service runs.
+ *
+ * A full load reads the file in chunks on one thread, parses the chunks on a pool, and inserts them as
+ * batches of prepared inserts, one transaction per batch. Rows have the FLIGHTS columns in table order
+ * and no header.
+ *
+ * A delta file changes a loaded schedule, one change per line:
+ *   +,<FLIGHTS columns>      adds a flight
+ *   -,<fid>                  cancels a flight; like canceled flights in the data, it gets an actual_time of 0
+ *                            a flight that still has reservations that aren't canceled can't be canceled:
+ *                            they have to be canceled first, so that nobody pays for a flight that won't fly
+ *   ~,<fid>,<actual_time>    retimes a flight
+ * Lines starting with # are comments. A delta is checked completely before anything is changed and then
+ * applied in one transaction, after which the registered {@link ScheduleListener}s patch whatever they
+ * keep in memory. Searches only ever see the schedule before or after the whole delta.
+ *
+ * With {@code flightservice.schedule_dir} set, the service applies every *.delta file that appears in that
+ * directory and renames it to *.applied, or to *.failed if it could not be applied.
+ *
+ *   java FlightsLoader load flights.csv
+ *   java FlightsLoader delta changes.delta
+ */
+public class FlightsLoader
+{
+  /**
+   * Told about every change a delta made, once it is committed.
+   */
+  public interface ScheduleListener
+  {
+    void flightAdded(int fid);
+
+    void flightCanceled(int fid);
+
+    void flightRetimed(int fid, int actualTime);
+  }
+
+  static final int COLUMNS = 18;
+  // the varchar columns of FLIGHTS, counting from 0
+  private static final boolean[] TEXT = new boolean[COLUMNS];
+  static {
+    for (int i : new int[] { 4, 6, 7, 8, 9 })
+      TEXT[i] = true;
+  }
+
+  private static final String CANCEL_FLIGHT_SQL = "UPDATE FLIGHTS SET canceled = 1, actual_time = 0 WHERE fid = ?";
+  private static final String RETIME_FLIGHT_SQL = "UPDATE FLIGHTS SET actual_time = ? WHERE fid = ?";
+  private static final String LIVE_RESERVATIONS_SQL =
+          "SELECT COUNT(*) FROM Reservations WHERE canceled = 0 AND (fid1 = ? OR fid2 = ?)";
+
+  private final Connection conn;
+  // a set, since every session of a database offers the same listeners
+  private final Set<ScheduleListener> listeners = new CopyOnWriteArraySet<>();
+
+  public FlightsLoader(Connection conn)
+  {
+    this.conn = conn;
+  }
+
+  public void addListener(ScheduleListener listener)
+  {
+    listeners.add(listener);
+  }
+
+  /**
+   * Loads every row of {@code filename} into FLIGHTS, parsing on {@code threads} threads.
+   *
+   * @return number of rows loaded
+   */
+  public long load(String filename, int threads) throws Exception
+  {
+    ExecutorService parsers = Executors.newFixedThreadPool(Math.max(1, threads));
+    Deque<Future<List<Object[]>>> parsed = new ArrayDeque<>();
+    long rows = 0;
+    boolean autoCommit = conn.getAutoCommit();
+    conn.setAutoCommit(false);
+    try (BufferedReader in = new BufferedReader(new FileReader(filename), 1 << 16);
+         PreparedStatement ps = conn.prepareStatement(LocalDatabase.INSERT_FLIGHT_SQL)) {
+      List<String> chunk = new ArrayList<>(LocalDatabase.BATCH_SIZE);
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.isEmpty())
+          continue;
+        chunk.add(line);
+        if (chunk.size() == LocalDatabase.BATCH_SIZE) {
+          List<String> lines = chunk;
+          parsed.add(parsers.submit(() -> parseRows(lines)));
+          chunk = new ArrayList<>(LocalDatabase.BATCH_SIZE);
+          // keeps the parsers a little ahead of the inserts without reading the whole file into memory
+          if (parsed.size() > 2 * threads)
+            rows += insert(ps, parsed.poll().get());
+        }
+      }
+      if (!chunk.isEmpty()) {
+        List<String> lines = chunk;
+        parsed.add(parsers.submit(() -> parseRows(lines)));
+      }
+      while (!parsed.isEmpty())
+        rows += insert(ps, parsed.poll().get());
+    } catch (Exception e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      parsers.shutdownNow();
+      conn.setAutoCommit(autoCommit);
+    }
+    return rows;
+  }
+
+  private int insert(PreparedStatement ps, List<Object[]> rows) throws SQLException
+  {
+    for (Object[] row : rows) {
+      bind(ps, row);
+      ps.addBatch();
+    }
+    ps.executeBatch();
+    conn.commit();
+    return rows.size();
+  }
+
+  static List<Object[]> parseRows(List<String> lines)
+  {
+    List<Object[]> rows = new ArrayList<>(lines.size());
+    for (String line : lines)
+      rows.add(parseRow(line.split(",", -1), 0));
+    return rows;
+  }
+
+  /**
+   * @return the FLIGHTS columns starting at {@code cols[from]}, as Integer, String or null
+   */
+  static Object[] parseRow(String[] cols, int from)
+  {
+    if (cols.length - from < COLUMNS)
+      throw new IllegalArgumentException("expected " + COLUMNS + " columns, got " + (cols.length - from));
+    Object[] row = new Object[COLUMNS];
+    for (int i = 0; i < COLUMNS; ++i) {
+      String c = cols[from + i];
+      row[i] = TEXT[i] ? c : c.isEmpty() ? null : Integer.valueOf(c);
+    }
+    return row;
+  }
+
+  static void bind(PreparedStatement ps, Object[] row) throws SQLException
+  {
+    for (int i = 0; i < COLUMNS; ++i) {
+      if (TEXT[i])
+        ps.setString(i + 1, (String) row[i]);
+      else if (row[i] == null)
+        ps.setNull(i + 1, Types.INTEGER);
+      else
+        ps.setInt(i + 1, (Integer) row[i]);
+    }
+  }
+
+  /**
+   * Applies the changes in {@code filename} in one transaction.
+   *
+   * @return number of changes
+   * @throws IOException if a line can't be parsed; nothing is changed then
+   * @throws SQLException also if a canceled flight has live reservations; nothing is changed then either
+   */
+  public int applyDelta(String filename) throws IOException, SQLException
+  {
+    List<Object[]> added = new ArrayList<>();
+    List<Integer> canceled = new ArrayList<>();
+    List<int[]> retimed = new ArrayList<>();
+    try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+      String line;
+      int lineNo = 0;
+      while ((line = in.readLine()) != null) {
+        lineNo++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#"))
+          continue;
+        String[] cols = line.split(",", -1);
+        try {
+          switch (cols[0]) {
+            case "+":
+              added.add(parseRow(cols, 1));
+              break;
+            case "-":
+              canceled.add(Integer.parseInt(cols[1].trim()));
+              break;
+            case "~":
+              retimed.add(new int[] { Integer.parseInt(cols[1].trim()), Integer.parseInt(cols[2].trim()) });
+              break;
+            default:
+              throw new IllegalArgumentException("unknown change '" + cols[0] + "'");
+          }
+        } catch (RuntimeException e) {
+          throw new IOException(filename + ":" + lineNo + ": " + e.getMessage(), e);
+        }
+      }
+    }
+
+    // the updates and the check of them share one transaction: canceling a flight waits for the bookings
+    // that locked it (see Query.book), and the check then sees their reservations
+    boolean autoCommit = conn.getAutoCommit();
+    int isolation = conn.getTransactionIsolation();
+    conn.setTransactionIsolation(SqlDialect.forUrl(conn.getMetaData().getURL()).lockingIsolation());
+    conn.setAutoCommit(false);
+    try (PreparedStatement insert = conn.prepareStatement(LocalDatabase.INSERT_FLIGHT_SQL);
+         PreparedStatement cancel = conn.prepareStatement(CANCEL_FLIGHT_SQL);
+         PreparedStatement retime = conn.prepareStatement(RETIME_FLIGHT_SQL);
+         PreparedStatement live = conn.prepareStatement(LIVE_RESERVATIONS_SQL)) {
+      for (Object[] row : added) {
+        bind(insert, row);
+        insert.addBatch();
+      }
+      for (int fid : canceled) {
+        cancel.setInt(1, fid);
+        cancel.addBatch();
+      }
+      for (int[] r : retimed) {
+        retime.setInt(1, r[1]);
+        retime.setInt(2, r[0]);
+        retime.addBatch();
+      }
+      insert.executeBatch();
+      cancel.executeBatch();
+      retime.executeBatch();
+      // checked after the flights are marked, so that a booking committed before then is seen
+      for (int fid : canceled) {
+        live.setInt(1, fid);
+        live.setInt(2, fid);
+        try (ResultSet rs = live.executeQuery()) {
+          rs.next();
+          if (rs.getInt(1) > 0)
+            throw new SQLException("flight " + fid + " has " + rs.getInt(1)
+                    + " live reservations; cancel them before the flight");
+        }
+      }
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(autoCommit);
+      conn.setTransactionIsolation(isolation);
+    }
+
+    for (ScheduleListener l : listeners) {
+      for (Object[] row : added)
+        l.flightAdded((Integer) row[0]);
+      for (int fid : canceled)
+        l.flightCanceled(fid);
+      for (int[] r : retimed)
+        l.flightRetimed(r[0], r[1]);
+    }
+    return added.size() + canceled.size() + retimed.size();
+  }
+
+  private static final Map<String, FlightsLoader> WATCHED = new ConcurrentHashMap<>();
+  private static final ReentrantLock starting = new ReentrantLock();
+
+  /**
+   * Starts applying the delta files that appear in {@code dir} to the database at {@code url}, on a
+   * connection of its own.
+   *
+   * @return the loader that applies them, started the first time
+   */
+  static FlightsLoader watch(String configFilename, String url, File dir, long pollMillis) throws Exception
+  {
+    FlightsLoader loader = WATCHED.get(url);
+    if (loader != null)
+      return loader;
+    starting.lock();
+    try {
+      loader = WATCHED.get(url);
+      return loader != null ? loader : startWatching(configFilename, url, dir, pollMillis);
+    } finally {
+      starting.unlock();
+    }
+  }
+
+  private static FlightsLoader startWatching(String configFilename, String url, File dir, long pollMillis)
+          throws Exception
+  {
+    Query q = new Query(configFilename);
+    q.internal = true;
+    q.openConnection();
+    FlightsLoader watcher = new FlightsLoader(q.connection());
+    WATCHED.put(url, watcher);
+
+    Thread t = new Thread(() -> {
+      while (true) {
+        File[] deltas = dir.listFiles((d, name) -> name.endsWith(".delta"));
+        if (deltas != null) {
+          // named so that they sort in the order they are to be applied
+          Arrays.sort(deltas);
+          for (File delta : deltas) {
+            String base = delta.getPath().substring(0, delta.getPath().length() - ".delta".length());
+            try {
+              int changes = watcher.applyDelta(delta.getPath());
+              System.err.println("applied " + changes + " schedule changes from " + delta);
+              delta.renameTo(new File(base + ".applied"));
+            } catch (IOException | SQLException e) {
+              System.err.println("cannot apply " + delta + ": " + e.getMessage());
+              delta.renameTo(new File(base + ".failed"));
+            }
+          }
+        }
+        try {
+          Thread.sleep(pollMillis);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }, "schedule-watcher");
+    t.setDaemon(true);
+    t.start();
+    return watcher;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length != 2 || !(args[0].equals("load") || args[0].equals("delta"))) {
+      System.err.println("usage: java FlightsLoader load <csv> | delta <file>");
+      System.exit(1);
+    }
+    Query q = new Query(FlightService.DBCONFIG_FILENAME);
+    q.openConnection();
+    FlightsLoader loader = new FlightsLoader(q.connection());
+    long start = System.nanoTime();
+    long n = args[0].equals("load")
+            ? loader.load(args[1], Integer.getInteger("threads", Runtime.getRuntime().availableProcessors()))
+            : loader.applyDelta(args[1]);
+    System.out.println(String.format("%s: %d rows in %.1fs", args[0], n, (System.nanoTime() - start) / 1e9));
+    q.closeConnection();
+  }
+}
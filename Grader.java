@@ -3,8 +3,10 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
+import org.junit.runners.model.RunnerScheduler;
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -14,10 +16,12 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -26,10 +30,68 @@ import static org.junit.Assert.assertTrue;
 /**
  * Autograder for the transaction assignment
  *
+ * Test cases run one at a time against the configured database. When the database can give each case
+ * its own copy of the customer tables (see {@link SqlDialect#useSchema}), cases run in parallel instead,
+ * -Dparallel=N of them at a time, all sharing one FLIGHTS table.
+ *
+ * Locally that means H2 with FLIGHTS loaded from the real flights CSV (see dbconn.local.properties).
+ * Before relying on the parallel mode, run the suite with -Dparallel=1 and then with the default on
+ * the same database: both runs have to pass the same cases.
  */
-@RunWith(Parameterized.class)
+@RunWith(Grader.Parallel.class)
 public class Grader
 {
+  /**
+   * Runs the parameterized cases on a thread pool when {@link #parallelism()} allows it.
+   */
+  public static class Parallel extends Parameterized
+  {
+    public Parallel (Class<?> klass) throws Throwable
+    {
+      super(klass);
+      final int threads = parallelism();
+      if (threads > 1)
+      {
+        setScheduler(new RunnerScheduler()
+        {
+          private final ExecutorService cases = Executors.newFixedThreadPool(threads);
+
+          @Override
+          public void schedule (Runnable childStatement)
+          {
+            cases.submit(childStatement);
+          }
+
+          @Override
+          public void finished ()
+          {
+            cases.shutdown();
+            try
+            {
+              cases.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * @return how many cases may run at once: 1 unless the database supports isolated schemas
+   */
+  static int parallelism ()
+  {
+    Properties config = new Properties();
+    try (FileInputStream in = new FileInputStream(FlightService.DBCONFIG_FILENAME))
+    {
+      config.load(in);
+    } catch (IOException e) { return 1; }
+
+    if (!SqlDialect.forUrl(config.getProperty("flightservice.url")).supportsIsolatedSchemas())
+      return 1;
+    return Integer.getInteger("parallel", Runtime.getRuntime().availableProcessors());
+  }
+
   /**
    * Models a single user. Callable from a thread.
    */
@@ -41,7 +103,12 @@ public class Grader
 
     User (List<String> cmds, List<String> results) throws Exception
     {
-      this.q = new Query(FlightService.DBCONFIG_FILENAME);
+      this(cmds, results, null);
+    }
+
+    User (List<String> cmds, List<String> results, String schema) throws Exception
+    {
+      this.q = new Query(FlightService.DBCONFIG_FILENAME, schema);
       q.openConnection();
       q.prepareStatements();
 
@@ -54,13 +121,29 @@ public class Grader
     @Override
     public String call ()
     {
-      StringBuffer sb = new StringBuffer();
+      StringBuilder sb = new StringBuilder();
       for (String c : cmds)
-        sb.append(FlightService.execute(q, c));
+        sb.append(execute(c));
 
       return sb.toString();
     }
 
+    /**
+     * Runs a single command in this user's session.
+     */
+    public String execute (String cmd)
+    {
+      return FlightService.execute(q, cmd);
+    }
+
+    /**
+     * Checks the database for overbooked flights and negative balances.
+     */
+    public List<String> checkInvariants ()
+    {
+      return q.checkInvariants();
+    }
+
     public void shutdown () throws Exception
     {
       this.q.closeConnection();
@@ -74,10 +157,11 @@ public class Grader
   /**
    * Parse the input test case
    * @param filename test case's path and file name
+   * @param schema schema holding the case's own customer tables, null to use the default tables
    * @return new User objects with commands to run and expected results
    * @throws Exception
    */
-  static List<User> parse (String filename) throws Exception
+  static List<User> parse (String filename, String schema) throws Exception
   {
     List<User> users = new ArrayList<>();
 
@@ -101,8 +185,11 @@ public class Grader
           isCmd = false;
         else
         {
+          // each user holds a database permit for its whole session, see runTest
+          if (users.size() == MAX_USERS)
+            throw new Exception("input file has more than " + MAX_USERS + " users, line: " + lineNumber);
           results.add(r);
-          users.add(new User(cmds, results));
+          users.add(new User(cmds, results, schema));
           cmds = new ArrayList<>();
           results = new ArrayList<>();
           r = "";
@@ -153,42 +240,51 @@ public class Grader
 
   // maximum number of concurrent users we will be testing
   protected static final int MAX_USERS = 5;
-  // thread pool used to run different users
-  protected static ExecutorService pool;
+  // runs each user on its own (virtual, where available) thread, at most MAX_USERS per parallel case at once
+  protected static SessionExecutor pool;
   // folder name and path that contains the test cases
   protected static String casesFolder;
 
   /**
-   * Creates the thread pool to execute test cases with multiple users.
+   * Creates the executor that runs test cases with multiple users.
    * This method is called before the entire test suite is executed.
    */
   @BeforeClass
   public static void setup()
   {
     System.out.println("running setup");
-    pool = Executors.newFixedThreadPool(MAX_USERS);
+    pool = new SessionExecutor(MAX_USERS * parallelism());
   }
 
   protected String file;
+  // schema with this case's own customer tables, null when cases run serially on the default tables
+  protected String schema;
 
-  public Grader (String file)
+  public Grader (String file, int index)
   {
     this.file = file;
+    if (parallelism() > 1)
+      this.schema = "grader_case_" + index;
   }
 
-  @Parameterized.Parameters
-  public static List<String> files () throws IOException
+  @Parameterized.Parameters(name = "{0}")
+  public static List<Object[]> files () throws IOException
   {
     casesFolder = System.getProperty("folder");
     if (casesFolder == null || casesFolder.length() == 0)
       casesFolder = "cases"; // default, override with -Dfolder=xxx
 
     System.out.println("running cases from: " + casesFolder + "\n");
+    List<String> files;
     try (Stream<Path> paths = Files.walk(Paths.get(casesFolder)))
     {
-      return paths.filter(Files::isRegularFile).map(p -> p.toAbsolutePath().toString())
+      files = paths.filter(Files::isRegularFile).map(p -> p.toAbsolutePath().toString())
               .collect(Collectors.toList());
     }
+    List<Object[]> params = new ArrayList<>();
+    for (int i = 0; i < files.size(); ++i)
+      params.add(new Object[] { files.get(i), i });
+    return params;
 
     // comment out the above and use this to run individual test cases
     //return Arrays.asList( Paths.get("path to case file") );
@@ -199,7 +295,7 @@ public class Grader
   {
     try
     {
-      Query q = new Query(FlightService.DBCONFIG_FILENAME);
+      Query q = new Query(FlightService.DBCONFIG_FILENAME, schema);
       q.openConnection();
       q.prepareStatements();
       q.clearTables();
@@ -211,11 +307,12 @@ public class Grader
   public void runTest () throws Exception
   {
     System.out.println("running test: " + this.file);
-    List<User> users = parse(this.file);
+    List<User> users = parse(this.file, schema);
     List<Future<String>> futures = new ArrayList<>();
 
+    // a case has at most MAX_USERS users, so parallel cases never wait on each other for permits
     for (User u : users)
-      futures.add(pool.submit(u));
+      futures.add(pool.submit(() -> pool.db(u)));
 
     List<String> outputs = new ArrayList<>();
     for (Future<String> f : futures)
@@ -0,0 +1,138 @@
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Timers for a large number of items that each expire once, in the manner of Varghese and Lauck's
+ * hashed timing wheel.
+ *
+ * Time is cut into ticks of {@code tickMillis} and a deadline goes into the bucket of its tick modulo
+ * the wheel size, with the number of full turns left to wait. Scheduling and canceling are O(1) and
+ * never take a lock: new timers wait in a queue until the thread that advances the wheel moves them
+ * into their bucket, and canceled ones are dropped the next time their bucket comes round. Expiry is
+ * accurate to one tick.
+ *
+ * Any thread may schedule and cancel; only one thread may call {@link #advance}.
+ */
+public class HashedTimerWheel<T>
+{
+  public static final class Timeout<T>
+  {
+    private final T item;
+    private final long deadline;
+    private long rounds;
+    private volatile boolean canceled;
+    // bucket list, touched only by the advancing thread
+    private Timeout<T> next;
+
+    private Timeout(T item, long deadline)
+    {
+      this.item = item;
+      this.deadline = deadline;
+    }
+
+    public T item()
+    {
+      return item;
+    }
+
+    public long deadline()
+    {
+      return deadline;
+    }
+
+    /**
+     * Keeps the item from expiring, unless it already has.
+     */
+    public void cancel()
+    {
+      canceled = true;
+    }
+  }
+
+  private final long tickMillis;
+  private final long startMillis;
+  private final Timeout<T>[] buckets;
+  private final int mask;
+  private final ConcurrentLinkedQueue<Timeout<T>> pending = new ConcurrentLinkedQueue<>();
+  // next tick to process
+  private long tick;
+
+  /**
+   * @param wheelSize number of buckets, rounded up to a power of two
+   */
+  @SuppressWarnings("unchecked")
+  public HashedTimerWheel(long tickMillis, int wheelSize, long startMillis)
+  {
+    if (tickMillis <= 0 || wheelSize <= 0)
+      throw new IllegalArgumentException("tick and wheel size must be positive");
+    int size = Integer.highestOneBit(wheelSize);
+    if (size < wheelSize)
+      size <<= 1;
+    this.tickMillis = tickMillis;
+    this.startMillis = startMillis;
+    this.buckets = (Timeout<T>[]) new Timeout<?>[size];
+    this.mask = size - 1;
+  }
+
+  /**
+   * Schedules {@code item} to expire at {@code deadlineMillis}. A deadline in the past expires on the next advance.
+   */
+  public Timeout<T> schedule(T item, long deadlineMillis)
+  {
+    Timeout<T> timeout = new Timeout<>(item, deadlineMillis);
+    pending.add(timeout);
+    return timeout;
+  }
+
+  /**
+   * Processes every tick up to {@code nowMillis} and adds the items that expired to {@code expired}.
+   */
+  public void advance(long nowMillis, List<T> expired)
+  {
+    long last = (nowMillis - startMillis) / tickMillis;
+    while (tick <= last) {
+      transferPending();
+      int idx = (int) (tick & mask);
+      Timeout<T> prev = null;
+      Timeout<T> t = buckets[idx];
+      while (t != null) {
+        Timeout<T> next = t.next;
+        boolean remove;
+        if (t.canceled) {
+          remove = true;
+        } else if (t.rounds <= 0) {
+          expired.add(t.item);
+          remove = true;
+        } else {
+          t.rounds--;
+          remove = false;
+        }
+        if (remove) {
+          if (prev == null)
+            buckets[idx] = next;
+          else
+            prev.next = next;
+          t.next = null;
+        } else {
+          prev = t;
+        }
+        t = next;
+      }
+      tick++;
+    }
+  }
+
+  private void transferPending()
+  {
+    Timeout<T> t;
+    while ((t = pending.poll()) != null) {
+      if (t.canceled)
+        continue;
+      long due = Math.max((t.deadline - startMillis + tickMillis - 1) / tickMillis, tick);
+      t.rounds = (due - tick) / buckets.length;
+      int idx = (int) (due & mask);
+      t.next = buckets[idx];
+      buckets[idx] = t;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks when {@link HashedTimerWheel} expires its items, on a wheel small enough that most deadlines
+ * are several turns away.
+ */
+public class HashedTimerWheelTest
+{
+  static final long START = 1000;
+  static final long TICK = 10;
+  // rounded up to 8 buckets, so one turn is 80 ms
+  static final int WHEEL_SIZE = 5;
+
+  private final HashedTimerWheel<Integer> wheel = new HashedTimerWheel<>(TICK, WHEEL_SIZE, START);
+  // when each item is due to expire, the end of the tick its deadline falls in
+  private final Map<Integer, Long> due = new HashMap<>();
+  private final Map<Integer, Long> expiredAt = new HashMap<>();
+
+  private void schedule (int item, long deadline)
+  {
+    wheel.schedule(item, deadline);
+    due.put(item, START + (deadline - START + TICK - 1) / TICK * TICK);
+  }
+
+  private void advanceTo (long from, long to)
+  {
+    List<Integer> expired = new ArrayList<>();
+    for (long now = from; now <= to; now++) {
+      wheel.advance(now, expired);
+      for (Integer item : expired)
+        assertEquals("item " + item + " expired twice", null, expiredAt.put(item, now));
+      expired.clear();
+    }
+  }
+
+  @Test
+  public void expiresOnTimeAcrossRounds ()
+  {
+    Random r = new Random(37);
+    for (int i = 0; i < 500; i++)
+      schedule(i, START + r.nextInt(500));
+    // on tick boundaries and whole turns
+    schedule(1000, START);
+    schedule(1001, START + TICK);
+    schedule(1002, START + 8 * TICK);
+    schedule(1003, START + 16 * TICK + 1);
+    advanceTo(START, 1237);
+
+    // scheduled while the wheel is part way through a turn
+    for (int i = 2000; i < 2500; i++)
+      schedule(i, 1237 + r.nextInt(400));
+    advanceTo(1238, 1700);
+
+    assertEquals(due.keySet(), expiredAt.keySet());
+    for (Map.Entry<Integer, Long> e : due.entrySet())
+      assertEquals("item " + e.getKey(), e.getValue(), expiredAt.get(e.getKey()));
+  }
+
+  @Test
+  public void canceledItemsNeverExpire ()
+  {
+    HashedTimerWheel.Timeout<Integer> beforeTransfer = wheel.schedule(1, START + 300);
+    beforeTransfer.cancel();
+    schedule(2, START + 300);
+    HashedTimerWheel.Timeout<Integer> inBucket = wheel.schedule(3, START + 300);
+    advanceTo(START, START + 100);
+    inBucket.cancel();
+    advanceTo(START + 101, START + 500);
+
+    assertFalse(expiredAt.containsKey(1));
+    assertFalse(expiredAt.containsKey(3));
+    assertEquals(START + 300, (long) expiredAt.get(2));
+  }
+
+  @Test
+  public void pastDeadlinesExpireOnTheNextTick ()
+  {
+    advanceTo(START, START + 555);
+    wheel.schedule(1, START + 100);
+    List<Integer> expired = new ArrayList<>();
+    wheel.advance(START + 559, expired);
+    assertTrue(expired.isEmpty());
+    wheel.advance(START + 560, expired);
+    assertEquals(1, expired.size());
+  }
+}
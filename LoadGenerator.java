@@ -0,0 +1,335 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Drives the flight service with many synthetic users to measure throughput and latency.
+ *
+ * Every synthetic user is a {@link Grader.User} session running the same text commands that the test
+ * cases use. The routes searched for are taken from the search commands in the cases folder and are
+ * chosen with a Zipfian distribution, as are the days. Sessions arrive open-loop at a fixed rate, so a
+ * slow server shows up as scheduling lag instead of silently lowering the offered load.
+ *
+ * Settings are read from system properties:
+ *   -Dusers=2000        number of synthetic users
+ *   -Drate=100          target commands per second
+ *   -Dops=8             commands per user after create and login
+ *   -Dmix=search:60,book:20,pay:10,cancel:10,reservations:0
+ *   -Dzipf=1.1          skew of route and day popularity
+ *   -Dthreads=64        maximum concurrent sessions
+ *   -Dfolder=cases      where to look for search commands
+ *   -Dclear=false       clear the customer tables before starting
+ */
+public class LoadGenerator
+{
+  private static final Pattern RESERVATION_ID = Pattern.compile("reservation ID: (\\d+)");
+
+  private final int users = Integer.getInteger("users", 2000);
+  private final double rate = Double.parseDouble(System.getProperty("rate", "100"));
+  private final int ops = Integer.getInteger("ops", 8);
+  private final int threads = Integer.getInteger("threads", 64);
+  private final double skew = Double.parseDouble(System.getProperty("zipf", "1.1"));
+  private final String mix = System.getProperty("mix", "search:60,book:20,pay:10,cancel:10");
+  private final String casesFolder = System.getProperty("folder", "cases");
+
+  private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+  private List<String[]> routes; // {origin, destination}
+  private Zipf routeDist;
+  private Zipf dayDist;
+  private String[] mixCommands;
+  private double[] mixCdf;
+
+  private final Map<String, Latencies> latencies = new LinkedHashMap<>();
+  private final Latencies lag = new Latencies();
+  private final List<String> violations = new ArrayList<>();
+  private final AtomicInteger failedSessions = new AtomicInteger();
+
+  /**
+   * Samples ranks 0..n-1 where rank i has weight 1 / (i + 1)^s.
+   */
+  static class Zipf
+  {
+    private final double[] cdf;
+
+    Zipf (int n, double s)
+    {
+      cdf = new double[n];
+      double sum = 0;
+      for (int i = 0; i < n; ++i)
+      {
+        sum += 1.0 / Math.pow(i + 1, s);
+        cdf[i] = sum;
+      }
+      for (int i = 0; i < n; ++i)
+        cdf[i] /= sum;
+    }
+
+    int next (Random r)
+    {
+      int i = Arrays.binarySearch(cdf, r.nextDouble());
+      return Math.min(i < 0 ? -i - 1 : i, cdf.length - 1);
+    }
+  }
+
+  /**
+   * Latency samples for one kind of command, in nanoseconds.
+   */
+  static class Latencies
+  {
+    private long[] samples = new long[1024];
+    private int size;
+
+    synchronized void add (long nanos)
+    {
+      if (size == samples.length)
+        samples = Arrays.copyOf(samples, size * 2);
+      samples[size++] = nanos;
+    }
+
+    synchronized int count () { return size; }
+
+    synchronized String summary ()
+    {
+      if (size == 0)
+        return "no samples";
+      long[] sorted = Arrays.copyOf(samples, size);
+      Arrays.sort(sorted);
+      return String.format("n=%d p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms", size,
+              ms(percentile(sorted, 0.50)), ms(percentile(sorted, 0.90)), ms(percentile(sorted, 0.99)),
+              ms(percentile(sorted, 0.999)), ms(sorted[size - 1]));
+    }
+
+    static long percentile (long[] sorted, double p)
+    {
+      return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    static double ms (long nanos) { return nanos / 1e6; }
+  }
+
+  /**
+   * Collects the distinct (origin, destination) pairs searched for in the test cases.
+   */
+  static List<String[]> loadRoutes (String folder) throws IOException
+  {
+    Set<String> seen = new LinkedHashSet<>();
+    List<String[]> routes = new ArrayList<>();
+    List<Path> files;
+    try (Stream<Path> paths = Files.walk(Paths.get(folder)))
+    {
+      files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    for (Path p : files)
+    {
+      try (BufferedReader r = new BufferedReader(new FileReader(p.toFile())))
+      {
+        String l;
+        while ((l = r.readLine()) != null)
+        {
+          String[] tokens = FlightService.tokenize(l.split(Grader.COMMENTS, 2)[0].trim());
+          if (tokens.length == 6 && tokens[0].equals("search") && seen.add(tokens[1] + "|" + tokens[2]))
+            routes.add(new String[] { tokens[1], tokens[2] });
+        }
+      }
+    }
+    return routes;
+  }
+
+  private void parseMix ()
+  {
+    String[] parts = mix.split(",");
+    mixCommands = new String[parts.length];
+    mixCdf = new double[parts.length];
+    double sum = 0;
+    for (int i = 0; i < parts.length; ++i)
+    {
+      String[] kv = parts[i].trim().split(":");
+      mixCommands[i] = kv[0];
+      sum += Double.parseDouble(kv[1]);
+      mixCdf[i] = sum;
+    }
+    for (int i = 0; i < parts.length; ++i)
+      mixCdf[i] /= sum;
+  }
+
+  private String nextKind (Random r)
+  {
+    double x = r.nextDouble();
+    for (int i = 0; i < mixCdf.length; ++i)
+      if (x < mixCdf[i])
+        return mixCommands[i];
+    return mixCommands[mixCommands.length - 1];
+  }
+
+  private synchronized Latencies latenciesFor (String kind)
+  {
+    return latencies.computeIfAbsent(kind, k -> new Latencies());
+  }
+
+  private String run (Grader.User u, String cmd)
+  {
+    String kind = cmd.substring(0, cmd.indexOf(' ') < 0 ? cmd.length() : cmd.indexOf(' '));
+    long start = System.nanoTime();
+    String response = u.execute(cmd);
+    latenciesFor(kind).add(System.nanoTime() - start);
+
+    if (response.contains("remaining balance: -"))
+      synchronized (violations) { violations.add("Negative balance reported: " + response.trim()); }
+    return response;
+  }
+
+  /**
+   * One synthetic user: create an account, log in, then run a random mix of commands.
+   * Pay and cancel refer to the last reservation this user booked, if any.
+   */
+  private void session (int id, long intendedStart)
+  {
+    lag.add(System.nanoTime() - intendedStart);
+    Random r = ThreadLocalRandom.current();
+    String name = "load" + runId + "_" + id;
+    Grader.User u = null;
+    try
+    {
+      u = new Grader.User(new ArrayList<>(), new ArrayList<>());
+      run(u, "create " + name + " " + name + " " + (500 + r.nextInt(5000)));
+      run(u, "login " + name + " " + name);
+
+      String lastReservation = null;
+      int lastK = 0;
+      for (int i = 0; i < ops; ++i)
+      {
+        switch (nextKind(r))
+        {
+          case "search":
+            String[] route = routes.get(routeDist.next(r));
+            int day = 1 + dayDist.next(r);
+            lastK = 1 + r.nextInt(10);
+            run(u, "search \"" + route[0] + "\" \"" + route[1] + "\" " + r.nextInt(2) + " " + day + " " + lastK);
+            break;
+          case "book":
+            if (lastK == 0)
+              break;
+            Matcher m = RESERVATION_ID.matcher(run(u, "book " + r.nextInt(lastK)));
+            if (m.find())
+              lastReservation = m.group(1);
+            break;
+          case "pay":
+            if (lastReservation != null)
+              run(u, "pay " + lastReservation);
+            break;
+          case "cancel":
+            if (lastReservation != null)
+              run(u, "cancel " + lastReservation);
+            lastReservation = null;
+            break;
+          case "reservations":
+            run(u, "reservations");
+            break;
+          default:
+            break;
+        }
+      }
+      run(u, "quit");
+    }
+    catch (Exception e)
+    {
+      failedSessions.incrementAndGet();
+      e.printStackTrace();
+    }
+    finally
+    {
+      if (u != null)
+        try { u.shutdown(); } catch (Exception e) { e.printStackTrace(); }
+    }
+  }
+
+  public void run () throws Exception
+  {
+    routes = loadRoutes(casesFolder);
+    if (routes.isEmpty())
+      throw new Exception("no search commands found in " + casesFolder);
+    routeDist = new Zipf(routes.size(), skew);
+    dayDist = new Zipf(31, skew);
+    parseMix();
+
+    if (Boolean.getBoolean("clear"))
+    {
+      Query q = new Query(FlightService.DBCONFIG_FILENAME);
+      q.openConnection();
+      q.prepareStatements();
+      q.clearTables();
+      q.closeConnection();
+    }
+
+    // each session issues ops + 3 commands, so this arrival rate offers `rate` commands per second
+    long interval = (long) (1e9 * (ops + 3) / rate);
+    System.out.println("running " + users + " users on " + routes.size() + " routes, one arriving every "
+            + String.format("%.1f", interval / 1e6) + "ms");
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    long start = System.nanoTime();
+    for (int i = 0; i < users; ++i)
+    {
+      long intended = start + i * interval;
+      long wait = intended - System.nanoTime();
+      if (wait > 0)
+        TimeUnit.NANOSECONDS.sleep(wait);
+      final int id = i;
+      pool.execute(() -> session(id, intended));
+    }
+    pool.shutdown();
+    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    long elapsed = System.nanoTime() - start;
+
+    Grader.User checker = new Grader.User(new ArrayList<>(), new ArrayList<>());
+    violations.addAll(checker.checkInvariants());
+    checker.shutdown();
+
+    report(elapsed);
+  }
+
+  private void report (long elapsed)
+  {
+    int commands = 0;
+    for (Latencies l : latencies.values())
+      commands += l.count();
+
+    System.out.println();
+    System.out.println(String.format("%d commands in %.1fs: %.1f commands/s (target %.1f)", commands,
+            elapsed / 1e9, commands / (elapsed / 1e9), rate));
+    System.out.println("failed sessions: " + failedSessions.get());
+    System.out.println("session start lag: " + lag.summary());
+    for (Map.Entry<String, Latencies> e : latencies.entrySet())
+      System.out.println(String.format("%-13s %s", e.getKey(), e.getValue().summary()));
+
+    System.out.println("invariant violations: " + violations.size());
+    for (String v : violations)
+      System.out.println("  " + v);
+  }
+
+  public static void main (String[] args) throws Exception
+  {
+    new LoadGenerator().run();
+  }
+}
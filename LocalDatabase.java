@@ -0,0 +1,178 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sets up an embedded database (H2, in memory or in a local file) with the same tables that
+ * createTables.sql creates on SQL Server, so that the service, the grader and the load tools can
+ * run on one machine without the remote server.
+ *
+ * FLIGHTS is loaded from the CSV named by flightservice.flights_csv when set, and otherwise filled with
+ * flightservice.synthetic_flights generated rows. The generator is seeded by flightservice.synthetic_seed,
+ * so every run sees the same schedule. The grader cases are written against the real flights, so only a
+ * database loaded from a CSV of them can pass: flights_fixture.csv holds the ones the cases search for,
+ * and a full export gives realistic searches. The synthetic schedule is for load tests. The H2 driver
+ * is in lib/.
+ */
+public class LocalDatabase
+{
+  // the indexes are the ones createTables.sql builds, without the INCLUDE columns H2 has no syntax for;
+  // change both together
+  static final String[] FLIGHTS_TABLES = {
+    "CREATE TABLE IF NOT EXISTS FLIGHTS (fid int PRIMARY KEY, month_id int, day_of_month int, day_of_week_id int, "
+      + "carrier_id varchar(7), flight_num int, origin_city varchar(34), origin_state varchar(47), "
+      + "dest_city varchar(34), dest_state varchar(46), departure_delay int, taxi_out int, arrival_delay int, "
+      + "canceled int, actual_time int, distance int, capacity int, price int)",
+    "CREATE INDEX IF NOT EXISTS flights_route_time ON FLIGHTS (origin_city, dest_city, day_of_month, actual_time)",
+    "CREATE INDEX IF NOT EXISTS flights_route_price ON FLIGHTS (origin_city, dest_city, day_of_month, price)",
+    "CREATE INDEX IF NOT EXISTS flights_leg_time ON FLIGHTS (origin_city, day_of_month, actual_time)",
+    "CREATE INDEX IF NOT EXISTS flights_leg_price ON FLIGHTS (origin_city, day_of_month, price)",
+  };
+
+  // created in the current schema, which may be a per-connection schema next to the shared FLIGHTS
+  static final String[] CUSTOMER_TABLES = {
+    "CREATE TABLE IF NOT EXISTS Users (username varchar(50) PRIMARY KEY, password varbinary(32), salt varbinary(16), "
+      + "balance int)",
+    "CREATE TABLE IF NOT EXISTS Reservations (rev_id int PRIMARY KEY, it_id int, username varchar(50), paid int, "
+      + "fid1 int, fid2 int, day int, canceled int DEFAULT 0, booked_at bigint)",
+    "CREATE INDEX IF NOT EXISTS reservations_user ON Reservations (username)",
+    "CREATE TABLE IF NOT EXISTS Capacity (fid int PRIMARY KEY, capacity int, "
+      + "FOREIGN KEY (fid) REFERENCES PUBLIC.FLIGHTS (fid))",
+    "CREATE TABLE IF NOT EXISTS Ledger (username varchar(50), rev_id int, amount int, kind varchar(8), at bigint)",
+    "CREATE INDEX IF NOT EXISTS ledger_user ON Ledger (username)",
+  };
+
+  static final String INSERT_FLIGHT_SQL = "INSERT INTO FLIGHTS VALUES(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+  static final int BATCH_SIZE = 1000;
+
+  static final String[][] CITIES = {
+    { "Seattle", "WA" }, { "Boston", "MA" }, { "Kahului", "HI" }, { "Los Angeles", "CA" },
+    { "San Francisco", "CA" }, { "New York", "NY" }, { "Chicago", "IL" }, { "Denver", "CO" },
+    { "Atlanta", "GA" }, { "Dallas/Fort Worth", "TX" }, { "Houston", "TX" }, { "Phoenix", "AZ" },
+    { "Las Vegas", "NV" }, { "Minneapolis", "MN" }, { "Detroit", "MI" }, { "Miami", "FL" },
+    { "Orlando", "FL" }, { "Portland", "OR" }, { "Salt Lake City", "UT" }, { "Honolulu", "HI" },
+    { "Anchorage", "AK" }, { "Washington", "DC" }, { "Philadelphia", "PA" }, { "Charlotte", "NC" },
+  };
+  static final String[] CARRIERS = { "AA", "AS", "B6", "DL", "HA", "NK", "UA", "WN" };
+
+  // urls that were already set up by this JVM
+  private static final Set<String> initialized = new HashSet<>();
+  private static final ReentrantLock initializing = new ReentrantLock();
+
+  /**
+   * Creates the tables and loads FLIGHTS, once per database url.
+   */
+  public static void initialize(Connection conn, String url, Properties config) throws Exception
+  {
+    initializing.lock();
+    try {
+      if (initialized.contains(url))
+        return;
+      createTables(conn);
+      if (countFlights(conn) == 0) {
+        String csv = config.getProperty("flightservice.flights_csv");
+        if (csv != null && !csv.trim().isEmpty()) {
+          if (!new File(csv.trim()).isFile())
+            throw new FileNotFoundException("flightservice.flights_csv: no file " + csv.trim()
+                    + "; export FLIGHTS to it, or comment it out to generate a synthetic schedule");
+          loadCsv(conn, csv.trim());
+        } else {
+          int rows = Integer.parseInt(config.getProperty("flightservice.synthetic_flights", "100000").trim());
+          long seed = Long.parseLong(config.getProperty("flightservice.synthetic_seed", "414").trim());
+          generateFlights(conn, rows, seed);
+        }
+      }
+      initialized.add(url);
+    } finally {
+      initializing.unlock();
+    }
+  }
+
+  static void createTables(Connection conn) throws SQLException
+  {
+    try (Statement st = conn.createStatement()) {
+      for (String ddl : FLIGHTS_TABLES)
+        st.executeUpdate(ddl);
+    }
+    createCustomerTables(conn);
+  }
+
+  static void createCustomerTables(Connection conn) throws SQLException
+  {
+    try (Statement st = conn.createStatement()) {
+      for (String ddl : CUSTOMER_TABLES)
+        st.executeUpdate(ddl);
+    }
+  }
+
+  static int countFlights(Connection conn) throws SQLException
+  {
+    try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM FLIGHTS")) {
+      rs.next();
+      return rs.getInt(1);
+    }
+  }
+
+  /**
+   * Loads a CSV export of FLIGHTS with the columns in table order and no header.
+   */
+  static void loadCsv(Connection conn, String filename) throws Exception
+  {
+    new FlightsLoader(conn).load(filename, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Fills FLIGHTS with {@code rows} flights in July, spread over the city pairs in {@link #CITIES}.
+   * About one in fifty flights is canceled, and canceled flights have an actual_time of 0, as in the
+   * real data.
+   */
+  static void generateFlights(Connection conn, int rows, long seed) throws SQLException
+  {
+    Random r = new Random(seed);
+    try (PreparedStatement ps = conn.prepareStatement(INSERT_FLIGHT_SQL)) {
+      for (int fid = 1; fid <= rows; ++fid) {
+        String[] origin = CITIES[r.nextInt(CITIES.length)];
+        String[] dest;
+        do {
+          dest = CITIES[r.nextInt(CITIES.length)];
+        } while (dest == origin);
+
+        int day = 1 + r.nextInt(31);
+        int distance = 150 + r.nextInt(2800);
+        boolean canceled = r.nextInt(50) == 0;
+
+        ps.setInt(1, fid);
+        ps.setInt(2, 7);
+        ps.setInt(3, day);
+        ps.setInt(4, 1 + (day + 1) % 7);
+        ps.setString(5, CARRIERS[r.nextInt(CARRIERS.length)]);
+        ps.setInt(6, 1 + r.nextInt(3000));
+        ps.setString(7, origin[0] + " " + origin[1]);
+        ps.setString(8, origin[1]);
+        ps.setString(9, dest[0] + " " + dest[1]);
+        ps.setString(10, dest[1]);
+        ps.setInt(11, r.nextInt(60) - 10);
+        ps.setInt(12, 5 + r.nextInt(25));
+        ps.setInt(13, r.nextInt(60) - 15);
+        ps.setInt(14, canceled ? 1 : 0);
+        ps.setInt(15, canceled ? 0 : 30 + distance / 8 + r.nextInt(40));
+        ps.setInt(16, distance);
+        ps.setInt(17, r.nextInt(21));
+        ps.setInt(18, 100 + r.nextInt(901));
+        ps.addBatch();
+        if (fid % BATCH_SIZE == 0)
+          ps.executeBatch();
+      }
+      ps.executeBatch();
+    }
+  }
+}
@@ -0,0 +1,131 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2 hashing for the passwords stored in the Users table.
+ *
+ * Deriving a hash is deliberately slow, so all of it runs on a small dedicated pool:
+ * a burst of logins queues up there instead of occupying the threads that book and pay.
+ * Credentials that were verified recently are remembered as a cheap digest so that
+ * repeated logins for the same user skip the key derivation altogether.
+ */
+public class PasswordHasher
+{
+  public static final int SALT_BYTES = 16;
+  public static final int HASH_BYTES = 32;
+
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+  private static final int ITERATIONS = 65536;
+
+  // number of recently verified credentials we remember
+  private static final int CACHE_SIZE = 1024;
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private static final ExecutorService hashPool = Executors.newFixedThreadPool(
+          Math.max(1, Runtime.getRuntime().availableProcessors() / 2), r -> {
+            Thread t = new Thread(r, "password-hasher");
+            t.setDaemon(true);
+            return t;
+          });
+
+  // username -> digest of the credential that was last verified for it, in LRU order
+  private static final Map<String, byte[]> verified = new LinkedHashMap<String, byte[]>(16, 0.75f, true)
+  {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest)
+    {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  public static byte[] newSalt()
+  {
+    byte[] salt = new byte[SALT_BYTES];
+    random.nextBytes(salt);
+    return salt;
+  }
+
+  /**
+   * Derives the hash stored for {@code password}. Runs on the hashing pool.
+   */
+  public static byte[] hash(String password, byte[] salt) throws GeneralSecurityException
+  {
+    return onHashPool(() -> derive(password, salt));
+  }
+
+  /**
+   * Checks {@code password} against the hash and salt stored for {@code username}.
+   *
+   * @return true if the password matches
+   */
+  public static boolean verify(String username, String password, byte[] salt, byte[] storedHash)
+          throws GeneralSecurityException
+  {
+    if (salt == null || storedHash == null)
+      return false;
+
+    // the digest covers the stored hash too, so a changed password never hits a stale entry
+    byte[] digest = credentialDigest(password, salt, storedHash);
+    byte[] cached;
+    synchronized (verified) {
+      cached = verified.get(username);
+    }
+    if (cached != null && MessageDigest.isEqual(cached, digest)) {
+      return true;
+    }
+
+    byte[] computed = hash(password, salt);
+    if (!MessageDigest.isEqual(computed, storedHash)) {
+      return false;
+    }
+    synchronized (verified) {
+      verified.put(username, digest);
+    }
+    return true;
+  }
+
+  private static byte[] derive(String password, byte[] salt) throws GeneralSecurityException
+  {
+    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, HASH_BYTES * 8);
+    try {
+      return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+    } finally {
+      spec.clearPassword();
+    }
+  }
+
+  private static byte[] credentialDigest(String password, byte[] salt, byte[] storedHash)
+          throws GeneralSecurityException
+  {
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    md.update(salt);
+    md.update(storedHash);
+    md.update(password.getBytes(StandardCharsets.UTF_8));
+    return md.digest();
+  }
+
+  private static byte[] onHashPool(Callable<byte[]> task) throws GeneralSecurityException
+  {
+    try {
+      return hashPool.submit(task).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GeneralSecurityException("interrupted while hashing", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof GeneralSecurityException)
+        throw (GeneralSecurityException) e.getCause();
+      throw new GeneralSecurityException(e.getCause());
+    }
+  }
+}
@@ -1,10 +1,14 @@
+import java.io.File;
 import java.io.FileInputStream;
+import java.security.GeneralSecurityException;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * Runs queries against a back-end database
@@ -21,38 +25,105 @@ public class Query
 
   // DB Connection
   private Connection conn;
+  private SqlDialect dialect;
+  // every statement prepared on conn, so that a session holds a fixed set however long it runs
+  private StatementCache statements;
+
+  // rows fetched per round trip by the searches
+  private static final int SEARCH_FETCH_SIZE = 100;
+
+  // remaining seats per flight, null unless flightservice.live_capacity or flightservice.hide_sold_out is set
+  private SeatAvailability seats;
+  // show remaining seats instead of the seat count in search results
+  private boolean liveCapacity;
+  // leave flights without a seat left out of search results
+  private boolean hideSoldOut;
+  // expiry of unpaid reservations, null unless flightservice.hold_ttl_seconds is set
+  private SeatHolds holds;
+  // set on the connection SeatHolds releases expired holds on
+  boolean expiresHolds;
+  // set on the connections the service opens for itself, the booking writers and the schedule watcher,
+  // which start none of the per-database services
+  boolean internal;
+  // single writer per day partition for bookings, null unless flightservice.booking_shards is set
+  private BookingShards shards;
+  // change events, null unless flightservice.feed_dir is set
+  private BookingFeed feed;
+
+  // copy of the database that searches and reservation listings read from, null unless
+  // flightservice.replica_urls is set; sessions take the replicas in turn
+  private Connection replica;
+  private StatementCache replicaStatements;
+  private static final AtomicInteger NEXT_REPLICA = new AtomicInteger();
+  // the statement on the replica of each primary statement that may read from it
+  private final Map<PreparedStatement, PreparedStatement> replicated = new HashMap<>();
+  // after a write the session reads from the primary for a while, so that it sees its own writes
+  private boolean pinned;
+  private long pinnedUntil;
+  private long pinNanos;
+
+  // set while a profile command runs
+  private CommandProfile profile;
+
+  // numbers sessions for the command recorder
+  private static final AtomicInteger SESSIONS = new AtomicInteger();
+  private final int sessionId = SESSIONS.incrementAndGet();
 
   // Logged In User
   private String username; // customer username is unique
-  private int reservationId = 1;
   // List of Itinaries
   // Canned queries
 
   private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
   private PreparedStatement checkFlightCapacityStatement;
 
-  private static final String LOGIN_SEARCH_SQL = "SELECT username, password FROM Users WHERE username=? AND password=?";
+  private static final String LOGIN_SEARCH_SQL = "SELECT password, salt FROM Users WHERE username=?";
   private PreparedStatement loginSearchStatement;
 
   private static final String CREATE_SEARCH_SQL = "SELECT * FROM Users WHERE username=?";
   private PreparedStatement createSearchStatement;
 
-  private static final String INSERT_USER_SQL = "INSERT INTO Users VALUES(?,?,?)";
+  private static final String INSERT_USER_SQL = "INSERT INTO Users (username, password, salt, balance) VALUES(?,?,?,?)";
   private PreparedStatement insertUserStatement;
   
-  private static final String DIRECT_SEARCH_SQL = "SELECT TOP (?) fid,day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price FROM Flights WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND actual_time > 0 ORDER BY actual_time ASC,fid";
+  private static final String DIRECT_SEARCH_SELECT = "SELECT fid,day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price FROM Flights WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND actual_time > 0";
+  private static final String DIRECT_SEARCH_SQL = DIRECT_SEARCH_SELECT + " ORDER BY actual_time ASC,fid";
   private PreparedStatement directSearchStatement;                                                  
 
-  private static final String INDIRECT_SEARCH_SQL = "SELECT TOP (?) F1.fid AS id1, F2.fid AS id2, F1.actual_time AS t1, F2.actual_time AS t2, F1.day_of_month AS day_of_month, F1.carrier_id AS carrier_id1, F2.carrier_id AS carrier_id2, F1.flight_num AS flight_num1, F2.flight_num AS flight_num2, F1.origin_city AS origin_city1, F2.origin_city AS origin_city2, F1.dest_city AS dest_city1, F2.dest_city AS dest_city2, F1.capacity AS capacity1, F2.capacity AS capacity2, F1.price AS price1, F2.price AS price2 FROM Flights AS F1, Flights AS F2 WHERE F1.origin_city = ? AND F1.dest_city = f2.origin_city AND F2.dest_city = ? AND F1.day_of_month = F2.day_of_month AND F1.day_of_month = ? AND F1.actual_time > 0 AND F2.actual_time > 0 ORDER BY (F1.actual_time + F2.actual_time)";
+  // the other ranking modes, see SearchRank; the weighted one takes the weights of time and price
+  private static final String DIRECT_BY_PRICE_SQL = DIRECT_SEARCH_SELECT + " ORDER BY price ASC,fid";
+  private PreparedStatement directByPriceStatement;
+
+  private static final String DIRECT_WEIGHTED_SQL = DIRECT_SEARCH_SELECT
+          + " ORDER BY (CAST(? AS DOUBLE PRECISION) * actual_time + CAST(? AS DOUBLE PRECISION) * price) ASC,fid";
+  private PreparedStatement directWeightedStatement;
+
+  // with flightservice.hide_sold_out, searches leave out flights whose Capacity row has no seat left
+  private static final String DIRECT_NOT_SOLD_OUT = " AND fid NOT IN (SELECT fid FROM Capacity WHERE capacity <= 0)";
+  private static final String INDIRECT_NOT_SOLD_OUT = " AND F1.fid NOT IN (SELECT fid FROM Capacity WHERE capacity <= 0)"
+          + " AND F2.fid NOT IN (SELECT fid FROM Capacity WHERE capacity <= 0)";
+
+  // the most rows a Pareto search reads in order of time; a front cut there is still the fastest part of it
+  static final int PARETO_MAX_ROWS = 10000;
+
+  private static final String INDIRECT_SEARCH_SELECT = "SELECT F1.fid AS id1, F2.fid AS id2, F1.actual_time AS t1, F2.actual_time AS t2, F1.day_of_month AS day_of_month, F1.carrier_id AS carrier_id1, F2.carrier_id AS carrier_id2, F1.flight_num AS flight_num1, F2.flight_num AS flight_num2, F1.origin_city AS origin_city1, F2.origin_city AS origin_city2, F1.dest_city AS dest_city1, F2.dest_city AS dest_city2, F1.capacity AS capacity1, F2.capacity AS capacity2, F1.price AS price1, F2.price AS price2 FROM Flights AS F1, Flights AS F2 WHERE F1.origin_city = ? AND F1.dest_city = f2.origin_city AND F2.dest_city = ? AND F1.day_of_month = F2.day_of_month AND F1.day_of_month = ? AND F1.actual_time > 0 AND F2.actual_time > 0";
+  private static final String INDIRECT_SEARCH_SQL = INDIRECT_SEARCH_SELECT + " ORDER BY (F1.actual_time + F2.actual_time),F1.fid,F2.fid";
   private PreparedStatement indirectSearchStatement;
 
-  private static final String RESERVATION_INSERT_SQL = "INSERT INTO Reservations VALUES(?,?,?,?,?,?,?)";
+  private static final String INDIRECT_BY_PRICE_SQL = INDIRECT_SEARCH_SELECT + " ORDER BY (F1.price + F2.price),F1.fid,F2.fid";
+  private PreparedStatement indirectByPriceStatement;
+
+  private static final String INDIRECT_WEIGHTED_SQL = INDIRECT_SEARCH_SELECT
+          + " ORDER BY (CAST(? AS DOUBLE PRECISION) * (F1.actual_time + F2.actual_time) + CAST(? AS DOUBLE PRECISION) * (F1.price + F2.price)),F1.fid,F2.fid";
+  private PreparedStatement indirectWeightedStatement;
+
+  private static final String RESERVATION_INSERT_SQL = "INSERT INTO Reservations (rev_id, it_id, username, paid, fid1, fid2, day, canceled, booked_at) VALUES(?,?,?,?,?,?,?,0,?)";
   private PreparedStatement reservationInsertStatement;
 
-  private static final String RESERVATION_CHECK_SQL = "SELECT day,rev_id,it_id,paid,fid1,fid2 FROM Reservations WHERE username = ?";
+  private static final String RESERVATION_CHECK_SQL = "SELECT day,rev_id,it_id,paid,fid1,fid2 FROM Reservations WHERE username = ? AND canceled = 0";
   private PreparedStatement reservationCheckStatement;
 
-  private static final String RESERVATION_GET_ID = "SELECT TOP 1 rev_id FROM Reservations ORDER BY rev_id DESC";
+  private static final String RESERVATION_GET_ID = "SELECT MAX(rev_id) AS rev_id FROM Reservations";
   private PreparedStatement reservationGetIDStatement;
 
   private static final String CAPACITY_INSERT_SQL = "INSERT INTO Capacity VALUES(?,?)";
@@ -61,6 +132,10 @@ public class Query
   private static final String CAPACITY_CHECK_SQL = "SELECT capacity FROM Capacity WHERE fid = ?";
   private PreparedStatement capacityCheckStatement;
 
+  // read again inside the booking transaction, since the schedule may cancel a flight after the search
+  private static final String LEG_CHECK_SQL = "SELECT canceled, actual_time FROM Flights WHERE fid = ?";
+  private PreparedStatement legCheckStatement;
+
   private static final String CAPACITY_UPDATE_SQL = "UPDATE Capacity SET capacity = ? WHERE fid = ?";
   private PreparedStatement capacityUpdateStatement;
 
@@ -73,39 +148,107 @@ public class Query
   private static final String GET_USER_MONEY_SQL = "SELECT balance FROM Users WHERE username = ?";
   private PreparedStatement getUserMoneyStatement;
 
-  private static final String UPDATE_RESERVATION_PAID_SQL = "UPDATE Reservations SET paid = 1 WHERE rev_id = ?";
+  private static final String UPDATE_RESERVATION_PAID_SQL = "UPDATE Reservations SET paid = 1 WHERE rev_id = ? AND paid = 0 AND canceled = 0";
   private PreparedStatement updateReservationPaidStatement;
 
-  private static final String UPDATE_USER_MONEY_SQL = "UPDATE Users SET balance = ? WHERE username = ?";
-  private PreparedStatement updateUserMoneyStatement;
+  // pay and refund change the balance by a delta instead of writing back one read before, and pay only
+  // if the balance covers it, so concurrent payments of a user never overwrite each other; every change
+  // is also appended to the Ledger
+  private static final String DEBIT_SQL = "UPDATE Users SET balance = balance - ? WHERE username = ? AND balance >= ?";
+  private PreparedStatement debitStatement;
 
-  private static final String CANCEL_RESERVATIONS_SQL = "DELETE FROM Reservations WHERE rev_id = ?";
+  private static final String PAY_LOOKUP_SQL = "SELECT R.fid1, R.fid2, F1.price + COALESCE(F2.price, 0) AS cost "
+          + "FROM Reservations AS R JOIN Flights AS F1 ON F1.fid = R.fid1 LEFT JOIN Flights AS F2 ON F2.fid = R.fid2 "
+          + "WHERE R.rev_id = ? AND R.username = ? AND R.paid = 0 AND R.canceled = 0";
+  private PreparedStatement payLookupStatement;
+
+  private static final String LEDGER_INSERT_SQL = "INSERT INTO Ledger (username, rev_id, amount, kind, at) VALUES(?,?,?,?,?)";
+  private PreparedStatement ledgerInsertStatement;
+
+  // On SQL Server, cancels in one round trip: the reservation is marked rather than deleted so that its ID is never handed out
+  // again, every leg gets its seat back and paid reservations are refunded. Returns the number of rows canceled.
+  private static final String CANCEL_RESERVATIONS_SQL = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+          + "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION; "
+          + "DECLARE @canceled TABLE (paid int, fid1 int, fid2 int); "
+          + "UPDATE Reservations SET canceled = 1 OUTPUT DELETED.paid, DELETED.fid1, DELETED.fid2 INTO @canceled "
+          + "WHERE rev_id = ? AND username = ? AND canceled = 0; "
+          + "UPDATE Capacity SET capacity = capacity + 1 WHERE fid IN (SELECT fid1 FROM @canceled UNION ALL SELECT fid2 FROM @canceled); "
+          + "UPDATE Users SET balance = balance + (SELECT ISNULL(SUM(F.price), 0) FROM @canceled AS C, Flights AS F "
+          + "WHERE C.paid = 1 AND (F.fid = C.fid1 OR F.fid = C.fid2)) WHERE username = ? AND EXISTS (SELECT * FROM @canceled); "
+          + "INSERT INTO Ledger (username, rev_id, amount, kind, at) SELECT ?, ?, SUM(F.price), 'REFUND', ? "
+          + "FROM @canceled AS C, Flights AS F WHERE C.paid = 1 AND (F.fid = C.fid1 OR F.fid = C.fid2) HAVING SUM(F.price) > 0; "
+          + "COMMIT TRANSACTION; "
+          + "SELECT COUNT(*) AS canceled, MAX(fid1) AS fid1, MAX(fid2) AS fid2, (SELECT ISNULL(SUM(F.price), 0) "
+          + "FROM @canceled AS C, Flights AS F WHERE C.paid = 1 AND (F.fid = C.fid1 OR F.fid = C.fid2)) AS refund FROM @canceled;";
   private PreparedStatement cancelReservatioStatement;
 
-  private static final String DELETE_USERS_SQL = "DELETE Users";
+  // the same cancel as separate statements, for engines that can't run the script above
+  private static final String CANCEL_LOOKUP_SQL = "SELECT paid, fid1, fid2 FROM Reservations WHERE rev_id = ? AND username = ? AND canceled = 0";
+  private PreparedStatement cancelLookupStatement;
+
+  private static final String CANCEL_MARK_SQL = "UPDATE Reservations SET canceled = 1 WHERE rev_id = ?";
+  private PreparedStatement cancelMarkStatement;
+
+  private static final String CAPACITY_RESTORE_SQL = "UPDATE Capacity SET capacity = capacity + 1 WHERE fid = ?";
+  private PreparedStatement capacityRestoreStatement;
+
+  private static final String REFUND_SQL = "UPDATE Users SET balance = balance + ? WHERE username = ?";
+  private PreparedStatement refundStatement;
+
+  // seat holds: unpaid reservations to schedule when a database is opened, and the release of expired ones
+  private static final String UNPAID_RESERVATIONS_SQL = "SELECT rev_id, fid1, fid2, booked_at FROM Reservations WHERE paid = 0 AND canceled = 0";
+  private PreparedStatement unpaidReservationsStatement;
+
+  private static final String EXPIRE_HOLD_SQL = "UPDATE Reservations SET canceled = 1 WHERE rev_id = ? AND paid = 0 AND canceled = 0";
+  private PreparedStatement expireHoldStatement;
+
+  // most booked (origin, destination, day) routes, for the start-up warm-up
+  private static final String POPULAR_ROUTES_SQL = "SELECT F1.origin_city AS origin_city, "
+          + "COALESCE(F2.dest_city, F1.dest_city) AS dest_city, R.day AS day, COUNT(*) AS bookings "
+          + "FROM Reservations AS R JOIN Flights AS F1 ON F1.fid = R.fid1 LEFT JOIN Flights AS F2 ON F2.fid = R.fid2 "
+          + "WHERE R.canceled = 0 "
+          + "GROUP BY F1.origin_city, COALESCE(F2.dest_city, F1.dest_city), R.day ORDER BY bookings DESC";
+  private PreparedStatement popularRoutesStatement;
+
+  // invariant checks used by the load generator
+  private static final String OVERBOOKED_FLIGHTS_SQL = "SELECT F.fid, F.capacity, COUNT(*) AS booked "
+          + "FROM (SELECT fid1 AS fid FROM Reservations WHERE canceled = 0 "
+          + "UNION ALL SELECT fid2 AS fid FROM Reservations WHERE canceled = 0) AS R, Flights AS F "
+          + "WHERE F.fid = R.fid GROUP BY F.fid, F.capacity HAVING COUNT(*) > F.capacity";
+  private PreparedStatement overbookedFlightsStatement;
+
+  private static final String NEGATIVE_CAPACITY_SQL = "SELECT fid, capacity FROM Capacity WHERE capacity < 0";
+  private PreparedStatement negativeCapacityStatement;
+
+  private static final String NEGATIVE_BALANCE_SQL = "SELECT username, balance FROM Users WHERE balance < 0";
+  private PreparedStatement negativeBalanceStatement;
+
+  private static final String UNRECONCILED_SQL = "SELECT U.username, U.balance, COALESCE(SUM(L.amount), 0) AS total "
+          + "FROM Users AS U LEFT JOIN Ledger AS L ON L.username = U.username "
+          + "GROUP BY U.username, U.balance HAVING U.balance <> COALESCE(SUM(L.amount), 0)";
+  private PreparedStatement unreconciledStatement;
+
+  private static final String DELETE_USERS_SQL = "DELETE FROM Users";
   private PreparedStatement deleteUsersStatement;
 
-  private static final String DELETE_RESERVATIONS_SQL = "DELETE Reservations";
+  private static final String DELETE_RESERVATIONS_SQL = "DELETE FROM Reservations";
   private PreparedStatement deleteReservatioStatement;
 
-  private static final String DELETE_CAPACITY_SQL = "DELETE CAPACITY";
+  private static final String DELETE_CAPACITY_SQL = "DELETE FROM Capacity";
   private PreparedStatement deleteCapacityStatement;
+
+  private static final String DELETE_LEDGER_SQL = "DELETE FROM Ledger";
+  private PreparedStatement deleteLedgerStatement;
   
-  // data structures for storing search results
-  private TreeMap<Integer, ArrayList<Flight>> sortedFlights = new TreeMap<>();
+  // itineraries returned by the last search, by itinerary id
   private HashMap<Integer, ArrayList<Flight>> searchedFlights = new HashMap<>();
 
-  // transactions
-  private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
+  // transactions, null where the dialect controls them through the connection instead
   private PreparedStatement beginTransactionStatement;
-
-  private static final String COMMIT_SQL = "COMMIT TRANSACTION";
   private PreparedStatement commitTransactionStatement;
-
-  private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
   private PreparedStatement rollbackTransactionStatement;
 
-  class Flight
+  static class Flight
   {
     public int fid;
     public int dayOfMonth;
@@ -126,12 +269,107 @@ public class Query
     }
   }
 
+  /**
+   * One or two flights on the same day that take a customer from origin to destination.
+   */
+  static class Itinerary
+  {
+    public final List<Flight> flights;
+
+    Itinerary(Flight... flights)
+    {
+      this.flights = Collections.unmodifiableList(Arrays.asList(flights));
+    }
+
+    public int totalTime()
+    {
+      int time = 0;
+      for (Flight f : flights)
+        time += f.time;
+      return time;
+    }
+
+    public int totalPrice()
+    {
+      int price = 0;
+      for (Flight f : flights)
+        price += f.price;
+      return price;
+    }
+  }
+
+  /**
+   * A reservation of the logged in user, with the flights it is for.
+   */
+  static class Reservation
+  {
+    public final int id;
+    public final boolean paid;
+    public final List<Flight> flights;
+
+    Reservation(int id, boolean paid, List<Flight> flights)
+    {
+      this.id = id;
+      this.paid = paid;
+      this.flights = flights;
+    }
+  }
+
+  /**
+   * A reservation row before its flights are looked up; fid2 is -1 for direct flights.
+   */
+  static class ReservationRow
+  {
+    public final int id;
+    public final boolean paid;
+    public final int day;
+    public final int fid1;
+    public final int fid2;
+
+    ReservationRow(int id, boolean paid, int day, int fid1, int fid2)
+    {
+      this.id = id;
+      this.paid = paid;
+      this.day = day;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+    }
+  }
+
+  /**
+   * An unpaid reservation and when it was booked, in epoch milliseconds.
+   */
+  static class HeldReservation
+  {
+    public final int id;
+    public final int fid1;
+    public final int fid2;
+    public final long bookedAt;
+
+    HeldReservation(int id, int fid1, int fid2, long bookedAt)
+    {
+      this.id = id;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.bookedAt = bookedAt;
+    }
+  }
+
+  // own copy of the customer tables, if any; see SqlDialect#useSchema
+  private String schema;
+
   public Query(String configFilename)
+  {
+    this(configFilename, null);
+  }
+
+  public Query(String configFilename, String schema)
   {
     this.configFilename = configFilename;
+    this.schema = schema;
   }
 
-  /* Connection code to SQL Azure.  */
+  /* Connection code to SQL Azure, or to a local embedded database for offline runs.  */
   public void openConnection() throws Exception
   {
     configProps.load(new FileInputStream(configFilename));
@@ -151,14 +389,76 @@ public class Query
 
     conn.setAutoCommit(true); //by default automatically commit after each statement
 
+    dialect = SqlDialect.forUrl(jSQLUrl);
+    if (Boolean.parseBoolean(configProps.getProperty("flightservice.local_init", "false")))
+      LocalDatabase.initialize(conn, jSQLUrl, configProps);
+    if (schema != null)
+      dialect.useSchema(conn, schema);
+
+    // replicas run the same engine as the primary and take the same credentials
+    String replicaUrls = configProps.getProperty("flightservice.replica_urls");
+    if (replicaUrls != null && !replicaUrls.trim().isEmpty() && !expiresHolds && !internal) {
+      String[] urls = replicaUrls.trim().split("\\s*,\\s*");
+      replica = DriverManager.getConnection(urls[Math.floorMod(NEXT_REPLICA.getAndIncrement(), urls.length)],
+              jSQLUser, jSQLPassword);
+      replica.setReadOnly(true);
+      if (schema != null)
+        dialect.useSchema(replica, schema);
+      pinNanos = Long.parseLong(configProps.getProperty("flightservice.replica_pin_millis", "10000")) * 1_000_000;
+    }
+
+    liveCapacity = Boolean.parseBoolean(configProps.getProperty("flightservice.live_capacity", "false"));
+    hideSoldOut = Boolean.parseBoolean(configProps.getProperty("flightservice.hide_sold_out", "false"));
+    if (liveCapacity || hideSoldOut)
+      seats = SeatAvailability.forDatabase(conn, jSQLUrl, schema);
+
+    String feedDir = configProps.getProperty("flightservice.feed_dir");
+    if (feedDir != null && !feedDir.trim().isEmpty())
+      feed = BookingFeed.forDatabase(jSQLUrl, schema, new File(feedDir.trim()),
+              Integer.parseInt(configProps.getProperty("flightservice.feed_buffer", "65536")),
+              Long.parseLong(configProps.getProperty("flightservice.feed_segment_events", "100000")));
+
+    long ttl = Long.parseLong(configProps.getProperty("flightservice.hold_ttl_seconds", "0"));
+    if (ttl > 0 && !expiresHolds)
+      holds = SeatHolds.forDatabase(configFilename, jSQLUrl, schema, ttl * 1000,
+              Long.parseLong(configProps.getProperty("flightservice.hold_tick_millis", "1000")));
+
+    // after the holds, which the writers schedule too
+    int partitions = Integer.parseInt(configProps.getProperty("flightservice.booking_shards", "0"));
+    if (partitions > 0 && !expiresHolds && !internal)
+      shards = BookingShards.forDatabase(configFilename, jSQLUrl, schema, partitions);
+
+    String scheduleDir = configProps.getProperty("flightservice.schedule_dir");
+    if (scheduleDir != null && !scheduleDir.trim().isEmpty() && !expiresHolds && !internal) {
+      FlightsLoader loader = FlightsLoader.watch(configFilename, jSQLUrl, new File(scheduleDir.trim()),
+              Long.parseLong(configProps.getProperty("flightservice.schedule_poll_millis", "5000")));
+      if (seats != null)
+        loader.addListener(seats);
+    }
+
     /* You will also want to appropriately set the transaction's isolation level through:
        conn.setTransactionIsolation(...)
        See Connection class' JavaDoc for details.
     */
   }
 
+  /**
+   * @return the JDBC connection, for tools that work on the tables directly
+   */
+  Connection connection()
+  {
+    return conn;
+  }
+
   public void closeConnection() throws Exception
   {
+    if (statements != null)
+      statements.closeAll();
+    if (replica != null) {
+      if (replicaStatements != null)
+        replicaStatements.closeAll();
+      replica.close();
+    }
     conn.close();
   }
 
@@ -171,9 +471,16 @@ public class Query
   {
     // your code here
     try {
-      deleteUsersStatement.executeUpdate();
-      deleteReservatioStatement.executeUpdate();
-      deleteCapacityStatement.executeUpdate();
+      update(deleteUsersStatement);
+      update(deleteReservatioStatement);
+      update(deleteCapacityStatement);
+      update(deleteLedgerStatement);
+      if (seats != null)
+        seats.clear();
+      if (holds != null)
+        holds.clear();
+      if (shards != null)
+        shards.reset();
     } catch (SQLException e) {
       e.printStackTrace();
     }
@@ -186,31 +493,63 @@ public class Query
    */
   public void prepareStatements() throws Exception
   {
-    beginTransactionStatement = conn.prepareStatement(BEGIN_TRANSACTION_SQL);
-    commitTransactionStatement = conn.prepareStatement(COMMIT_SQL);
-    rollbackTransactionStatement = conn.prepareStatement(ROLLBACK_SQL);
-
-    checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-    loginSearchStatement = conn.prepareStatement(LOGIN_SEARCH_SQL);
-    createSearchStatement = conn.prepareStatement(CREATE_SEARCH_SQL);
-    insertUserStatement = conn.prepareStatement(INSERT_USER_SQL);
-    directSearchStatement = conn.prepareStatement(DIRECT_SEARCH_SQL);
-    indirectSearchStatement = conn.prepareStatement(INDIRECT_SEARCH_SQL);
-    reservationInsertStatement = conn.prepareStatement(RESERVATION_INSERT_SQL);
-    reservationCheckStatement = conn.prepareStatement(RESERVATION_CHECK_SQL);
-    reservationGetIDStatement = conn.prepareStatement(RESERVATION_GET_ID);
-    capacityInsertStatement = conn.prepareStatement(CAPACITY_INSERT_SQL);
-    capacityCheckStatement = conn.prepareStatement(CAPACITY_CHECK_SQL);
-    capacityUpdateStatement = conn.prepareStatement(CAPACITY_UPDATE_SQL);
-    flightInfoStatement = conn.prepareStatement(FLIGHT_INFO_SQL);
-    flightPricStatement = conn.prepareStatement(FLIGHT_PRICE_SQL);
-    getUserMoneyStatement = conn.prepareStatement(GET_USER_MONEY_SQL);
-    updateReservationPaidStatement = conn.prepareStatement(UPDATE_RESERVATION_PAID_SQL);
-    updateUserMoneyStatement = conn.prepareStatement(UPDATE_USER_MONEY_SQL);
-    deleteUsersStatement = conn.prepareStatement(DELETE_USERS_SQL);
-    deleteReservatioStatement = conn.prepareStatement(DELETE_RESERVATIONS_SQL);
-    deleteCapacityStatement = conn.prepareStatement(DELETE_CAPACITY_SQL);
-    cancelReservatioStatement = conn.prepareStatement(CANCEL_RESERVATIONS_SQL);
+    statements = new StatementCache(conn);
+    if (replica != null)
+      replicaStatements = new StatementCache(replica);
+    if (dialect.beginTransactionSql() != null) {
+      beginTransactionStatement = statements.prepare(dialect.beginTransactionSql());
+      commitTransactionStatement = statements.prepare(dialect.commitSql());
+      rollbackTransactionStatement = statements.prepare(dialect.rollbackSql());
+    }
+
+    checkFlightCapacityStatement = statements.prepare(CHECK_FLIGHT_CAPACITY);
+    loginSearchStatement = statements.prepare(LOGIN_SEARCH_SQL);
+    createSearchStatement = statements.prepare(CREATE_SEARCH_SQL);
+    insertUserStatement = statements.prepare(INSERT_USER_SQL);
+    directSearchStatement = prepareRead(dialect.limit(searchSql(DIRECT_SEARCH_SQL, DIRECT_NOT_SOLD_OUT)),
+            SEARCH_FETCH_SIZE);
+    indirectSearchStatement = prepareRead(dialect.limit(searchSql(INDIRECT_SEARCH_SQL, INDIRECT_NOT_SOLD_OUT)),
+            SEARCH_FETCH_SIZE);
+    directByPriceStatement = prepareRead(dialect.limit(searchSql(DIRECT_BY_PRICE_SQL, DIRECT_NOT_SOLD_OUT)),
+            SEARCH_FETCH_SIZE);
+    indirectByPriceStatement = prepareRead(dialect.limit(searchSql(INDIRECT_BY_PRICE_SQL, INDIRECT_NOT_SOLD_OUT)),
+            SEARCH_FETCH_SIZE);
+    directWeightedStatement = prepareRead(dialect.limit(searchSql(DIRECT_WEIGHTED_SQL, DIRECT_NOT_SOLD_OUT)),
+            SEARCH_FETCH_SIZE);
+    indirectWeightedStatement = prepareRead(dialect.limit(searchSql(INDIRECT_WEIGHTED_SQL, INDIRECT_NOT_SOLD_OUT)),
+            SEARCH_FETCH_SIZE);
+    reservationInsertStatement = statements.prepare(RESERVATION_INSERT_SQL);
+    reservationCheckStatement = prepareRead(RESERVATION_CHECK_SQL, 0);
+    reservationGetIDStatement = statements.prepare(RESERVATION_GET_ID);
+    capacityInsertStatement = statements.prepare(CAPACITY_INSERT_SQL);
+    capacityCheckStatement = statements.prepare(CAPACITY_CHECK_SQL);
+    capacityUpdateStatement = statements.prepare(CAPACITY_UPDATE_SQL);
+    legCheckStatement = statements.prepare(dialect.lockRows(LEG_CHECK_SQL));
+    flightInfoStatement = prepareRead(FLIGHT_INFO_SQL, 0);
+    flightPricStatement = statements.prepare(FLIGHT_PRICE_SQL);
+    getUserMoneyStatement = statements.prepare(GET_USER_MONEY_SQL);
+    updateReservationPaidStatement = statements.prepare(UPDATE_RESERVATION_PAID_SQL);
+    debitStatement = statements.prepare(DEBIT_SQL);
+    payLookupStatement = statements.prepare(PAY_LOOKUP_SQL);
+    ledgerInsertStatement = statements.prepare(LEDGER_INSERT_SQL);
+    deleteUsersStatement = statements.prepare(DELETE_USERS_SQL);
+    deleteReservatioStatement = statements.prepare(DELETE_RESERVATIONS_SQL);
+    deleteCapacityStatement = statements.prepare(DELETE_CAPACITY_SQL);
+    deleteLedgerStatement = statements.prepare(DELETE_LEDGER_SQL);
+    if (dialect.supportsScripts()) {
+      cancelReservatioStatement = statements.prepare(CANCEL_RESERVATIONS_SQL);
+    }
+    unpaidReservationsStatement = statements.prepare(UNPAID_RESERVATIONS_SQL);
+    expireHoldStatement = statements.prepare(EXPIRE_HOLD_SQL);
+    cancelLookupStatement = statements.prepare(CANCEL_LOOKUP_SQL);
+    cancelMarkStatement = statements.prepare(CANCEL_MARK_SQL);
+    capacityRestoreStatement = statements.prepare(CAPACITY_RESTORE_SQL);
+    refundStatement = statements.prepare(REFUND_SQL);
+    popularRoutesStatement = statements.prepare(dialect.limit(POPULAR_ROUTES_SQL));
+    overbookedFlightsStatement = statements.prepare(OVERBOOKED_FLIGHTS_SQL);
+    negativeCapacityStatement = statements.prepare(NEGATIVE_CAPACITY_SQL);
+    negativeBalanceStatement = statements.prepare(NEGATIVE_BALANCE_SQL);
+    unreconciledStatement = statements.prepare(UNRECONCILED_SQL);
     /* add here more prepare statements for all the other queries you need */
     /* . . . . . . */
   }
@@ -236,13 +575,16 @@ public class Query
       if (this.username == null) {
         loginSearchStatement.clearParameters();
         loginSearchStatement.setString(1, username);
-        loginSearchStatement.setString(2, password);
-        ResultSet rs = loginSearchStatement.executeQuery();
-        int count = 0;
-        while(rs.next()){
-          count++;
+        byte[] storedHash = null;
+        byte[] salt = null;
+        try (ResultSet rs = query(loginSearchStatement)) {
+          if (rs.next()) {
+            storedHash = rs.getBytes("password");
+            salt = rs.getBytes("salt");
+          }
         }
-        if(count == 1) {
+        // the slow hash runs on PasswordHasher's own pool, not on this session's thread
+        if (PasswordHasher.verify(username, password, salt, storedHash)) {
           this.username = username;
           return ("Logged in as " + username + "\n");
         } else {
@@ -251,7 +593,7 @@ public class Query
       } else {
         return "User already logged in\n";
       }
-    } catch(SQLException e) {
+    } catch(SQLException | GeneralSecurityException e) {
       e.printStackTrace();
       return "Login failed\n";
     }
@@ -275,13 +617,17 @@ public class Query
       return "Failed to create user\n";
     }
     try{
+      // hash before starting the transaction so that it doesn't hold locks while hashing
+      byte[] salt = PasswordHasher.newSalt();
+      byte[] hash = PasswordHasher.hash(password, salt);
       beginTransaction();
       createSearchStatement.clearParameters();
       createSearchStatement.setString(1, username);
-      ResultSet rs = createSearchStatement.executeQuery();
       int count = 0;
-      while(rs.next()){
-        count++;
+      try (ResultSet rs = query(createSearchStatement)) {
+        while(rs.next()){
+          count++;
+        }
       }
       if (count == 1) {
         rollbackTransaction();
@@ -289,13 +635,15 @@ public class Query
       } else {
         insertUserStatement.clearParameters();
         insertUserStatement.setString(1, username);
-        insertUserStatement.setString(2, password);
-        insertUserStatement.setInt(3, initAmount);
-        insertUserStatement.executeUpdate();
+        insertUserStatement.setBytes(2, hash);
+        insertUserStatement.setBytes(3, salt);
+        insertUserStatement.setInt(4, initAmount);
+        update(insertUserStatement);
+        appendLedger(username, 0, initAmount, "DEPOSIT");
         commitTransaction();
         return ("Created user " + username + "\n");
       }
-    } catch(SQLException e) {
+    } catch(SQLException | GeneralSecurityException e) {
       e.printStackTrace();
       return "Failed to create user\n";
     }
@@ -309,7 +657,7 @@ public class Query
    * and flights with two "hops." Only searches for up to the number of
    * itineraries given by {@code numberOfItineraries}.
    *
-   * The results are sorted based on total flight time.
+   * The results are sorted based on total flight time, unless {@code rank} asks for another order.
    *
    * @param originCity
    * @param destinationCity
@@ -335,7 +683,28 @@ public class Query
   public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
                                    int numberOfItineraries)
   {
-    return transaction_searchHelper(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+    return transaction_search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries,
+            SearchRank.DURATION);
+  }
+
+  public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                                   int numberOfItineraries, SearchRank rank)
+  {
+    List<Itinerary> itineraries = search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, rank);
+    long renderStart = System.nanoTime();
+    String response = renderItineraries(itineraries);
+    if (profile != null)
+      profile.phase("rendering", System.nanoTime() - renderStart);
+    return response;
+  }
+
+  /**
+   * Same as {@code transaction_search}, but returns the itineraries instead of their text.
+   */
+  List<Itinerary> search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                         int numberOfItineraries, SearchRank rank)
+  {
+    return transaction_searchHelper(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, rank);
   }
 
   /**
@@ -348,28 +717,106 @@ public class Query
    * @param dayOfMonth
    * @param numberOfItineraries
    *
-   * @return The search results. Note that this implementation *does not conform* to the format required by
-   * {@code transaction_search}.
+   * @return The search results, in the order {@code transaction_search} prints them.
    */
-  private String transaction_searchHelper(String originCity, String destinationCity, boolean directFlight,
-                                          int dayOfMonth, int numberOfItineraries)
+  private List<Itinerary> transaction_searchHelper(String originCity, String destinationCity, boolean directFlight,
+                                          int dayOfMonth, int numberOfItineraries, SearchRank rank)
   {
-    String output;
-    int directCounter = 0;
+    List<Itinerary> direct = new ArrayList<>();
+    List<Itinerary> indirect = new ArrayList<>();
     try {
-      directSearchStatement.clearParameters();
-      indirectSearchStatement.clearParameters();
-      // clearing data structures
-      sortedFlights.clear();
-      searchedFlights.clear();
-
-      // setting parameters for directSearchStatement
-      directSearchStatement.setInt(1, numberOfItineraries);
-      directSearchStatement.setString(2, originCity);
-      directSearchStatement.setString(3, destinationCity);
-      directSearchStatement.setInt(4, dayOfMonth);
-
-      ResultSet rs = directSearchStatement.executeQuery();
+      direct = searchDirect(originCity, destinationCity, dayOfMonth, numberOfItineraries, rank);
+      // a one-stop itinerary can be on the front however many direct ones there are
+      int remainingFlight = rank.mode == SearchRank.Mode.PARETO ? numberOfItineraries
+              : numberOfItineraries - direct.size();
+      if (!directFlight && remainingFlight > 0) {
+        indirect = searchIndirect(originCity, destinationCity, dayOfMonth, remainingFlight, rank);
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+
+    long mergeStart = System.nanoTime();
+    List<Itinerary> itineraries = mergeItineraries(direct, indirect, numberOfItineraries, rank);
+    if (profile != null)
+      profile.phase("merge of direct and one-stop itineraries", System.nanoTime() - mergeStart);
+    rememberSearch(itineraries);
+    return itineraries;
+  }
+
+  /**
+   * Finds up to {@code limit} direct flights, shortest first.
+   */
+  List<Itinerary> searchDirect(String originCity, String destinationCity, int dayOfMonth, int limit)
+          throws SQLException
+  {
+    return searchDirect(originCity, destinationCity, dayOfMonth, limit, SearchRank.DURATION);
+  }
+
+  /**
+   * Finds up to {@code limit} direct flights in the order of {@code rank}.
+   */
+  List<Itinerary> searchDirect(String originCity, String destinationCity, int dayOfMonth, int limit, SearchRank rank)
+          throws SQLException
+  {
+    return failingOver(() -> {
+      int floor = Integer.MIN_VALUE;
+      if (rank.mode == SearchRank.Mode.PARETO) {
+        List<Itinerary> cheapest = searchDirect(originCity, destinationCity, dayOfMonth, 1, SearchRank.PRICE);
+        if (cheapest.isEmpty())
+          return cheapest;
+        floor = cheapest.get(0).totalPrice();
+      }
+      int cheapestPrice = floor;
+      // after the cheapest one, which may have dropped a replica that went away
+      PreparedStatement ps = reading(rank.mode == SearchRank.Mode.PRICE ? directByPriceStatement
+              : rank.mode == SearchRank.Mode.WEIGHTED ? directWeightedStatement : directSearchStatement);
+      return available(limit, n -> fetchDirect(ps, rank, originCity, destinationCity, dayOfMonth, n, cheapestPrice));
+    });
+  }
+
+  /**
+   * Binds the parameters shared by all the search statements.
+   *
+   * The Pareto front is built from the rows in order of time, as many as it takes up to
+   * {@link #PARETO_MAX_ROWS}, rather than {@code limit}.
+   */
+  private void bindSearch(PreparedStatement ps, SearchRank rank, String originCity, String destinationCity,
+                         int dayOfMonth, int limit) throws SQLException
+  {
+    boolean weighted = rank.mode == SearchRank.Mode.WEIGHTED;
+    boolean front = rank.mode == SearchRank.Mode.PARETO;
+    ps.clearParameters();
+    int bound = front ? PARETO_MAX_ROWS : limit;
+    int param = dialect.bindLimit(ps, bound, weighted ? 5 : 3);
+    ps.setString(param, originCity);
+    ps.setString(param + 1, destinationCity);
+    ps.setInt(param + 2, dayOfMonth);
+    if (weighted) {
+      ps.setDouble(param + 3, 1 - rank.weight);
+      ps.setDouble(param + 4, rank.weight);
+    }
+    if (profile != null) {
+      if (weighted)
+        profile.parameters(bound, originCity, destinationCity, dayOfMonth, 1 - rank.weight, rank.weight);
+      else
+        profile.parameters(bound, originCity, destinationCity, dayOfMonth);
+    }
+  }
+
+  /**
+   * @param floor for a Pareto search, the price of the cheapest itinerary; the scan stops once the front
+   *              reaches it
+   */
+  private List<Itinerary> fetchDirect(PreparedStatement ps, SearchRank rank, String originCity,
+                                      String destinationCity, int dayOfMonth, int limit, int floor)
+          throws SQLException
+  {
+    List<Itinerary> itineraries = new ArrayList<>();
+    SearchRank.Front front = rank.mode == SearchRank.Mode.PARETO ? new SearchRank.Front(limit, floor) : null;
+    bindSearch(ps, rank, originCity, destinationCity, dayOfMonth, limit);
+
+    try (ResultSet rs = query(ps)) {
       while (rs.next()) {
         Flight directF = new Flight();
         directF.fid = rs.getInt("fid");
@@ -381,85 +828,217 @@ public class Query
         directF.time = rs.getInt("actual_time");
         directF.capacity = rs.getInt("capacity");
         directF.price = rs.getInt("price");
+        Itinerary it = new Itinerary(directF);
+        if (front == null)
+          itineraries.add(it);
+        else if (bookable(it) && !front.offer(it))
+          break;
+      }
+    }
+    if (profile != null)
+      explain(searchLabel("direct search", rank), ps, p -> bindSearch(p, rank, originCity, destinationCity, dayOfMonth, limit));
+    return front == null ? itineraries : front.items();
+  }
 
-        if (sortedFlights.containsKey(directF.time)) {
-          sortedFlights.get(directF.time).add(directF);
-        } else {
-          ArrayList<Flight> flights = new ArrayList<>();
-          flights.add(directF);
-          sortedFlights.put(directF.time,flights);
-        }
-        directCounter++;
+  /**
+   * Finds up to {@code limit} itineraries with one stop on the same day, shortest first.
+   */
+  List<Itinerary> searchIndirect(String originCity, String destinationCity, int dayOfMonth, int limit)
+          throws SQLException
+  {
+    return searchIndirect(originCity, destinationCity, dayOfMonth, limit, SearchRank.DURATION);
+  }
+
+  /**
+   * Finds up to {@code limit} itineraries with one stop on the same day in the order of {@code rank}.
+   */
+  List<Itinerary> searchIndirect(String originCity, String destinationCity, int dayOfMonth, int limit,
+                                 SearchRank rank) throws SQLException
+  {
+    return failingOver(() -> {
+      int floor = Integer.MIN_VALUE;
+      if (rank.mode == SearchRank.Mode.PARETO) {
+        List<Itinerary> cheapest = searchIndirect(originCity, destinationCity, dayOfMonth, 1, SearchRank.PRICE);
+        if (cheapest.isEmpty())
+          return cheapest;
+        floor = cheapest.get(0).totalPrice();
       }
-      int remainingFlight = numberOfItineraries - directCounter;
-      if (!directFlight && remainingFlight > 0) {
-        indirectSearchStatement.setInt(1, remainingFlight);
-        indirectSearchStatement.setString(2, originCity);
-        indirectSearchStatement.setString(3, destinationCity);
-        indirectSearchStatement.setInt(4, dayOfMonth);
-        ResultSet rs1 = indirectSearchStatement.executeQuery();
-        while (rs1.next()) {
-          Flight indirectF1 = new Flight();
-          Flight indirectF2 = new Flight();
-          indirectF1.fid = rs1.getInt("id1");
-          indirectF1.dayOfMonth = rs1.getInt("day_of_month");
-          indirectF1.carrierId = rs1.getString("carrier_id1");
-          indirectF1.flightNum = rs1.getString("flight_num1");
-          indirectF1.originCity = rs1.getString("origin_city1");
-          indirectF1.destCity = rs1.getString("dest_city1");
-          indirectF1.time = rs1.getInt("t1");
-          indirectF1.capacity = rs1.getInt("capacity1");
-          indirectF1.price = rs1.getInt("price1");
-          
-          indirectF2.fid = rs1.getInt("id2");
-          indirectF2.dayOfMonth = indirectF1.dayOfMonth;
-          indirectF2.carrierId = rs1.getString("carrier_id2");
-          indirectF2.flightNum = rs1.getString("flight_num2");
-          indirectF2.originCity = rs1.getString("origin_city2");
-          indirectF2.destCity = rs1.getString("dest_city2");
-          indirectF2.time = rs1.getInt("t2");
-          indirectF2.capacity = rs1.getInt("capacity2");
-          indirectF2.price = rs1.getInt("price2");
-
-          int totalTime = indirectF1.time + indirectF2.time;
-
-          if (sortedFlights.containsKey(totalTime)) {
-            sortedFlights.get(totalTime).add(indirectF1);
-            sortedFlights.get(totalTime).add(indirectF2);
-          } else {
-            ArrayList<Flight> indirectFlights = new ArrayList<>();
-            indirectFlights.add(indirectF1);
-            indirectFlights.add(indirectF2);
-            sortedFlights.put(totalTime,indirectFlights);
-          }
-        }
+      int cheapestPrice = floor;
+      // after the cheapest one, which may have dropped a replica that went away
+      PreparedStatement ps = reading(rank.mode == SearchRank.Mode.PRICE ? indirectByPriceStatement
+              : rank.mode == SearchRank.Mode.WEIGHTED ? indirectWeightedStatement : indirectSearchStatement);
+      return available(limit, n -> fetchIndirect(ps, rank, originCity, destinationCity, dayOfMonth, n, cheapestPrice));
+    });
+  }
+
+  /**
+   * @param floor for a Pareto search, the price of the cheapest itinerary; the scan stops once the front
+   *              reaches it
+   */
+  private List<Itinerary> fetchIndirect(PreparedStatement ps, SearchRank rank, String originCity,
+                                        String destinationCity, int dayOfMonth, int limit, int floor)
+          throws SQLException
+  {
+    List<Itinerary> itineraries = new ArrayList<>();
+    SearchRank.Front front = rank.mode == SearchRank.Mode.PARETO ? new SearchRank.Front(limit, floor) : null;
+    bindSearch(ps, rank, originCity, destinationCity, dayOfMonth, limit);
+
+    try (ResultSet rs1 = query(ps)) {
+      while (rs1.next()) {
+        Flight indirectF1 = new Flight();
+        Flight indirectF2 = new Flight();
+        indirectF1.fid = rs1.getInt("id1");
+        indirectF1.dayOfMonth = rs1.getInt("day_of_month");
+        indirectF1.carrierId = rs1.getString("carrier_id1");
+        indirectF1.flightNum = rs1.getString("flight_num1");
+        indirectF1.originCity = rs1.getString("origin_city1");
+        indirectF1.destCity = rs1.getString("dest_city1");
+        indirectF1.time = rs1.getInt("t1");
+        indirectF1.capacity = rs1.getInt("capacity1");
+        indirectF1.price = rs1.getInt("price1");
+
+        indirectF2.fid = rs1.getInt("id2");
+        indirectF2.dayOfMonth = indirectF1.dayOfMonth;
+        indirectF2.carrierId = rs1.getString("carrier_id2");
+        indirectF2.flightNum = rs1.getString("flight_num2");
+        indirectF2.originCity = rs1.getString("origin_city2");
+        indirectF2.destCity = rs1.getString("dest_city2");
+        indirectF2.time = rs1.getInt("t2");
+        indirectF2.capacity = rs1.getInt("capacity2");
+        indirectF2.price = rs1.getInt("price2");
+        Itinerary it = new Itinerary(indirectF1, indirectF2);
+        if (front == null)
+          itineraries.add(it);
+        else if (bookable(it) && !front.offer(it))
+          break;
       }
-    } catch (SQLException e) {
-      e.printStackTrace();
     }
+    if (profile != null)
+      explain(searchLabel("one-stop search", rank), ps, p -> bindSearch(p, rank, originCity, destinationCity, dayOfMonth, limit));
+    return front == null ? itineraries : front.items();
+  }
 
-    output = "";
-    int itID = 0;
-    for (Map.Entry<Integer, ArrayList<Flight>> entrySet : sortedFlights.entrySet()) {
-      ArrayList<Flight> allFlights = entrySet.getValue();
-      ArrayList<Flight> groupedFlights = new ArrayList<>();
-      for (Flight f : allFlights) {
-        groupedFlights.add(f);
-        if (!f.destCity.equals(destinationCity)) {
-          continue;
-        } else {
-          int numOfFlgihts = groupedFlights.size();
-          output += "Itinerary " + itID + ": " + numOfFlgihts + " flight(s), " +  entrySet.getKey() + " minutes\n";
-          for (Flight f1 : groupedFlights) {
-            output += f1.toString() + "\n";
-          }
-          searchedFlights.put(itID,new ArrayList<Flight>(groupedFlights));
-          itID++;
-          groupedFlights.clear();
+  private interface Search
+  {
+    List<Itinerary> fetch(int limit) throws SQLException;
+  }
+
+  /**
+   * Runs {@code search} and applies the seat overlay. When sold out flights are hidden, the statement
+   * already leaves out what Capacity has as sold out; a flight that sold out since is dropped here, and
+   * the search runs again for twice as many rows if that left fewer than {@code limit}.
+   */
+  private List<Itinerary> available(int limit, Search search) throws SQLException
+  {
+    if (seats == null)
+      return search.fetch(limit);
+
+    List<Itinerary> itineraries;
+    if (hideSoldOut) {
+      int fetch = limit;
+      while (true) {
+        List<Itinerary> fetched = search.fetch(fetch);
+        itineraries = new ArrayList<>();
+        for (Itinerary it : fetched) {
+          if (bookable(it) && itineraries.size() < limit)
+            itineraries.add(it);
         }
+        if (itineraries.size() == limit || fetched.size() < fetch)
+          break;
+        fetch *= 2;
       }
+    } else {
+      itineraries = search.fetch(limit);
     }
-    return output;
+
+    if (liveCapacity) {
+      for (Itinerary it : itineraries)
+        for (Flight f : it.flights)
+          f.capacity = seats.remaining(f.fid, f.capacity);
+    }
+    return itineraries;
+  }
+
+  /**
+   * @return {@code sql}, a search ordered by an ORDER BY clause, with {@code notSoldOut} added to its
+   * conditions when sold out flights are hidden
+   */
+  private String searchSql(String sql, String notSoldOut)
+  {
+    if (!hideSoldOut)
+      return sql;
+    int order = sql.indexOf(" ORDER BY");
+    return sql.substring(0, order) + notSoldOut + sql.substring(order);
+  }
+
+  /**
+   * @return false if sold out flights are hidden and {@code it} has one
+   */
+  private boolean bookable(Itinerary it)
+  {
+    if (!hideSoldOut)
+      return true;
+    for (Flight f : it.flights)
+      if (seats.soldOut(f.fid))
+        return false;
+    return true;
+  }
+
+  static List<Itinerary> mergeItineraries(List<Itinerary> direct, List<Itinerary> indirect, int limit)
+  {
+    return mergeItineraries(direct, indirect, limit, SearchRank.DURATION);
+  }
+
+  /**
+   * Combines the results of both searches into the list a search returns: all the direct itineraries,
+   * then as many indirect ones as still fit in {@code limit}, in the order of {@code rank}. Direct
+   * itineraries come first among those that rank the same. For PARETO, the front of both searches
+   * together, fastest first.
+   */
+  static List<Itinerary> mergeItineraries(List<Itinerary> direct, List<Itinerary> indirect, int limit,
+                                          SearchRank rank)
+  {
+    if (rank.mode == SearchRank.Mode.PARETO) {
+      List<Itinerary> all = new ArrayList<>(direct);
+      all.addAll(indirect);
+      all.sort(rank.order());
+      SearchRank.Front front = new SearchRank.Front(limit);
+      for (Itinerary it : all)
+        if (!front.offer(it))
+          break;
+      return front.items();
+    }
+    List<Itinerary> merged = new ArrayList<>(direct);
+    int remaining = Math.max(0, limit - direct.size());
+    merged.addAll(indirect.subList(0, Math.min(remaining, indirect.size())));
+    // stable, so each search's own order is kept among equal ranks
+    merged.sort(rank.order());
+    return merged;
+  }
+
+  /**
+   * Makes {@code itineraries} the ones that book refers to, numbered from 0.
+   */
+  void rememberSearch(List<Itinerary> itineraries)
+  {
+    searchedFlights.clear();
+    for (int itID = 0; itID < itineraries.size(); itID++) {
+      searchedFlights.put(itID, new ArrayList<>(itineraries.get(itID).flights));
+    }
+  }
+
+  static String renderItineraries(List<Itinerary> itineraries)
+  {
+    StringBuilder output = new StringBuilder();
+    for (int itID = 0; itID < itineraries.size(); itID++) {
+      Itinerary it = itineraries.get(itID);
+      output.append("Itinerary ").append(itID).append(": ").append(it.flights.size()).append(" flight(s), ")
+              .append(it.totalTime()).append(" minutes\n");
+      for (Flight f : it.flights) {
+        output.append(f.toString()).append("\n");
+      }
+    }
+    return output.toString();
   }
 
   /**
@@ -479,75 +1058,145 @@ public class Query
    */
   public String transaction_book(int itineraryId)
   {
+    if (this.username == null) {
+      return "Cannot book reservations, not logged in\n";
+    } else if (!searchedFlights.containsKey(itineraryId)) {
+      return "No such itinerary " + itineraryId + "\n";
+    }
+    List<Flight> flights = searchedFlights.get(itineraryId);
+    pinToPrimary();
+    if (liveCapacity && soldOut(flights)) {
+      // no need for a transaction that can only roll back
+      return "Booking failed\n";
+    } else if (shards != null) {
+      return shards.book(username, itineraryId, flights);
+    }
+    return book(username, itineraryId, flights, null);
+  }
+
+  /**
+   * Books {@code flights}, all on the same day, for {@code user}.
+   *
+   * @param reservationIds the IDs shared by the writers of {@link BookingShards}, or null to take the one
+   * after the highest in Reservations
+   * @return the response of transaction_book
+   */
+  String book(String user, int itineraryId, List<Flight> flights, BookingShards.ReservationIds reservationIds)
+  {
+    int day = flights.get(0).dayOfMonth;
     try {
-      
       reservationInsertStatement.clearParameters();
       reservationCheckStatement.clearParameters();
       reservationGetIDStatement.clearParameters();
 
-      if (this.username == null) {
-        return "Cannot book reservations, not logged in\n";
-      } else if (!searchedFlights.containsKey(itineraryId)) {
-        return "No such itinerary " + itineraryId + "\n";
-      } else {
-        reservationCheckStatement.setString(1, username);
-        ResultSet sameDayCheck = reservationCheckStatement.executeQuery();
-        if (sameDayCheck.next()) {
-          int day = sameDayCheck.getInt("day");
-          if (day == searchedFlights.get(itineraryId).get(0).dayOfMonth) {
+      reservationCheckStatement.setString(1, user);
+      try (ResultSet sameDayCheck = query(reservationCheckStatement)) {
+        while (sameDayCheck.next()) {
+          if (sameDayCheck.getInt("day") == day) {
             return "You cannot book two flights in the same day\n";
           }
         }
-        beginTransaction();
-        ResultSet getID = reservationGetIDStatement.executeQuery();
-        if (getID.next()) {
-          reservationId = getID.getInt("rev_id") + 1;
+      }
+      beginTransaction();
+
+      int[] left = new int[flights.size()];
+      int leg = 0;
+      for (Flight f : flights) {
+        capacityInsertStatement.clearParameters();
+        capacityCheckStatement.clearParameters();
+        capacityUpdateStatement.clearParameters();
+        legCheckStatement.clearParameters();
+
+        // locked until commit, so that FlightsLoader can't cancel the leg under this booking
+        legCheckStatement.setInt(1, f.fid);
+        try (ResultSet legCheck = query(legCheckStatement)) {
+          if (!legCheck.next() || legCheck.getInt("canceled") != 0 || legCheck.getInt("actual_time") <= 0) {
+            rollbackTransaction();
+            return "Booking failed\n";
+          }
+        }
+
+        // a flight gets its single Capacity row the first time it is booked
+        capacityCheckStatement.setInt(1, f.fid);
+        boolean tracked;
+        int capacity;
+        try (ResultSet capCheck = query(capacityCheckStatement)) {
+          tracked = capCheck.next();
+          capacity = tracked ? capCheck.getInt("capacity") : f.capacity;
         }
-        reservationInsertStatement.setInt(1, reservationId);
-        reservationInsertStatement.setInt(2, itineraryId);
-        reservationInsertStatement.setString(3, username);
-        reservationInsertStatement.setInt(4, 0);
-        reservationInsertStatement.setInt(5, searchedFlights.get(itineraryId).get(0).fid);
-        if (searchedFlights.get(itineraryId).size() == 1) {
-          reservationInsertStatement.setInt(6, -1);
+        // with the overlay on, the searched flight shows what was left rather than the seat count
+        if (!tracked && liveCapacity)
+          capacity = checkFlightCapacity(f.fid);
+        if (capacity - 1 < 0) {
+          rollbackTransaction();
+          return "Booking failed\n";
+        } else if (tracked) {
+          capacityUpdateStatement.setInt(1, capacity - 1);
+          capacityUpdateStatement.setInt(2, f.fid);
+          update(capacityUpdateStatement);
         } else {
-          reservationInsertStatement.setInt(6, searchedFlights.get(itineraryId).get(1).fid);
-        }
-        reservationInsertStatement.setInt(7, searchedFlights.get(itineraryId).get(0).dayOfMonth);
-        reservationInsertStatement.executeUpdate();
-
-        for (Flight f : searchedFlights.get(itineraryId)) {
-          capacityInsertStatement.clearParameters();
-          capacityCheckStatement.clearParameters();
-          capacityUpdateStatement.clearParameters();
-          
           capacityInsertStatement.setInt(1, f.fid);
-          capacityInsertStatement.setInt(2, f.capacity);
-          capacityInsertStatement.executeUpdate();
-          
-          capacityCheckStatement.setInt(1, f.fid);
-          ResultSet capCheck = capacityCheckStatement.executeQuery();
-          if (capCheck.next()) {
-            int capacity = capCheck.getInt("capacity");
-            if (capacity - 1 < 0) {
-              rollbackTransaction();
-              return "Booking failed\n";
-            } else {
-              capacityUpdateStatement.setInt(1, capacity - 1);
-              capacityUpdateStatement.setInt(2, f.fid);
-              capacityUpdateStatement.executeUpdate();
-            }
-          }
+          capacityInsertStatement.setInt(2, capacity - 1);
+          update(capacityInsertStatement);
         }
+        left[leg++] = capacity - 1;
+      }
+
+      // taken once the seats are known to be there, and together with the commit, so that failed
+      // bookings don't use up IDs
+      int reservationId;
+      int fid2 = flights.size() == 1 ? -1 : flights.get(1).fid;
+      if (reservationIds != null)
+        reservationIds.committing.lock();
+      try {
+        reservationId = reservationIds != null ? reservationIds.last + 1 : lastReservationId() + 1;
+        reservationInsertStatement.setInt(1, reservationId);
+        reservationInsertStatement.setInt(2, itineraryId);
+        reservationInsertStatement.setString(3, user);
+        reservationInsertStatement.setInt(4, 0);
+        reservationInsertStatement.setInt(5, flights.get(0).fid);
+        reservationInsertStatement.setInt(6, fid2);
+        reservationInsertStatement.setInt(7, day);
+        reservationInsertStatement.setLong(8, System.currentTimeMillis());
+        update(reservationInsertStatement);
         commitTransaction();
-        return "Booked flight(s), reservation ID: " + reservationId + "\n";
+        if (reservationIds != null)
+          reservationIds.last = reservationId;
+      } finally {
+        if (reservationIds != null)
+          reservationIds.committing.unlock();
+      }
+
+      if (seats != null) {
+        for (int i = 0; i < left.length; i++)
+          seats.set(flights.get(i).fid, left[i]);
       }
+      if (holds != null)
+        holds.hold(reservationId, flights.get(0).fid, fid2);
+      if (feed != null)
+        feed.publish(BookingFeed.Type.BOOK, reservationId, user, flights.get(0).fid, fid2,
+                new Itinerary(flights.toArray(new Flight[0])).totalPrice());
+      return "Booked flight(s), reservation ID: " + reservationId + "\n";
     } catch (SQLException e) {
       e.printStackTrace();
+      try {
+        if (!conn.getAutoCommit())
+          rollbackTransaction();
+      } catch (SQLException ex) {
+        ex.printStackTrace();
+      }
     }
     return "Booking failed\n";
   }
 
+  private boolean soldOut(List<Flight> flights)
+  {
+    for (Flight f : flights)
+      if (seats.soldOut(f.fid))
+        return true;
+    return false;
+  }
+
   /**
    * Implements the reservations function.
    *
@@ -571,59 +1220,121 @@ public class Query
    */
   public String transaction_reservations()
   {
+    if (this.username == null) {
+      return "Cannot view reservations, not logged in\n";
+    }
     try {
-      reservationCheckStatement.clearParameters();
-      String output = "";
-      int payment;
-      boolean paid = false;
-      if (this.username == null) {
-        return "Cannot view reservations, not logged in\n";
-      } 
-      reservationCheckStatement.setString(1, username);
-      ResultSet rs = reservationCheckStatement.executeQuery();
-      int numberOfReservations = 0;
-      while (rs.next()) {
-        int rev_id = rs.getInt("rev_id");
-        payment = rs.getInt("paid");
-        int it_id = rs.getInt("it_id");
-        int fid1 = rs.getInt("fid1");
-        int fid2 =  rs.getInt("fid2");
-        int day = rs.getInt("day");
-        ArrayList<Integer> flightIDS = new ArrayList<>();
-        flightIDS.add(fid1);
-        flightIDS.add(fid2);
-        if (payment == 1) {
-          paid = true;
-        }
-        output += "Reservation " + rev_id + " paid: " + paid + ":\n";
-        for (int fid : flightIDS) {
-          flightInfoStatement.clearParameters();
-          flightInfoStatement.setInt(1, fid);
-          ResultSet rs1 = flightInfoStatement.executeQuery();
-          if (rs1.next()) {
-            Flight f = new Flight();
-            f.fid = fid;
-            f.dayOfMonth = day;
-            f.carrierId = rs1.getString("carrier_id");
-            f.flightNum = rs1.getString("flight_num");
-            f.originCity = rs1.getString("origin_city");
-            f.destCity = rs1.getString("dest_city");
-            f.time = rs1.getInt("time");
-            f.capacity = rs1.getInt("capacity");
-            f.price = rs1.getInt("price");
-            output += f.toString() + "\n";
+      return renderReservations(reservations());
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+    return "Failed to retrieve reservations\n";
+  }
+
+  /**
+   * @return the live reservations of the logged in user with their flights
+   */
+  List<Reservation> reservations() throws SQLException
+  {
+    return failingOver(() -> {
+      List<Reservation> reservations = new ArrayList<>();
+      for (ReservationRow row : reservationRows()) {
+        List<Flight> flights = new ArrayList<>();
+        for (int fid : new int[] { row.fid1, row.fid2 }) {
+          Flight f = flightInfo(fid, row.day);
+          if (f != null) {
+            flights.add(f);
           }
         }
-        numberOfReservations++;
+        reservations.add(new Reservation(row.id, row.paid, flights));
       }
-      if (numberOfReservations == 0) {
-        return "No reservations found\n";
+      return reservations;
+    });
+  }
+
+  /**
+   * @return the live reservations of the logged in user
+   */
+  List<ReservationRow> reservationRows() throws SQLException
+  {
+    List<ReservationRow> rows = new ArrayList<>();
+    PreparedStatement ps = reading(reservationCheckStatement);
+    ps.clearParameters();
+    ps.setString(1, username);
+    try (ResultSet rs = query(ps)) {
+      while (rs.next()) {
+        rows.add(new ReservationRow(rs.getInt("rev_id"), rs.getInt("paid") == 1, rs.getInt("day"),
+                rs.getInt("fid1"), rs.getInt("fid2")));
       }
-      return output;
-    } catch (SQLException e) {
-      e.printStackTrace();
     }
-    return "Failed to retrieve reservations\n";
+    return rows;
+  }
+
+  /**
+   * @return flight {@code fid}, or null if there is no such flight
+   */
+  Flight flightInfo(int fid, int day) throws SQLException
+  {
+    PreparedStatement ps = reading(flightInfoStatement);
+    ps.clearParameters();
+    ps.setInt(1, fid);
+    Flight f = null;
+    try (ResultSet rs1 = query(ps)) {
+      if (rs1.next()) {
+        f = new Flight();
+        f.fid = fid;
+        f.dayOfMonth = day;
+        f.carrierId = rs1.getString("carrier_id");
+        f.flightNum = rs1.getString("flight_num");
+        f.originCity = rs1.getString("origin_city");
+        f.destCity = rs1.getString("dest_city");
+        f.time = rs1.getInt("time");
+        f.capacity = rs1.getInt("capacity");
+        f.price = rs1.getInt("price");
+      }
+    }
+    return f;
+  }
+
+  static String renderReservations(List<Reservation> reservations)
+  {
+    if (reservations.isEmpty()) {
+      return "No reservations found\n";
+    }
+    StringBuilder output = new StringBuilder();
+    for (Reservation r : reservations) {
+      output.append("Reservation ").append(r.id).append(" paid: ").append(r.paid).append(":\n");
+      for (Flight f : r.flights) {
+        output.append(f.toString()).append("\n");
+      }
+    }
+    return output.toString();
+  }
+
+  /**
+   * @return the highest reservation ID handed out so far, 0 if there is none
+   */
+  int lastReservationId() throws SQLException
+  {
+    try (ResultSet getID = query(reservationGetIDStatement)) {
+      return getID.next() ? getID.getInt("rev_id") : 0;
+    }
+  }
+
+  /**
+   * @return a number that tells this session apart from the others of the JVM
+   */
+  int sessionId()
+  {
+    return sessionId;
+  }
+
+  /**
+   * @return the logged in user, or null
+   */
+  String currentUser()
+  {
+    return username;
   }
 
   /**
@@ -636,14 +1347,111 @@ public class Query
    *
    * If successful, return "Canceled reservation [reservationId]"
    *
+   * Canceling gives the seat on every leg back and refunds the price if the reservation was paid.
    * Even though a reservation has been canceled, its ID should not be reused by the system.
    */
   public String transaction_cancel(int reservationId)
   {
-    // only implement this if you are interested in earning extra credit for the HW!
+    if (this.username == null) {
+      return "Cannot cancel reservations, not logged in\n";
+    }
+    pinToPrimary();
+    try {
+      int[] fids = null;
+      if (cancelReservatioStatement != null) {
+        cancelReservatioStatement.clearParameters();
+        cancelReservatioStatement.setInt(1, reservationId);
+        cancelReservatioStatement.setString(2, username);
+        cancelReservatioStatement.setString(3, username);
+        cancelReservatioStatement.setString(4, username);
+        cancelReservatioStatement.setInt(5, reservationId);
+        cancelReservatioStatement.setLong(6, System.currentTimeMillis());
+        try (ResultSet rs = query(cancelReservatioStatement)) {
+          if (rs.next() && rs.getInt("canceled") == 1)
+            fids = new int[] { rs.getInt("fid1"), rs.getInt("fid2"), rs.getInt("refund") };
+        }
+      } else {
+        fids = cancelWithStatements(reservationId);
+      }
+      if (fids != null) {
+        if (seats != null) {
+          seats.release(fids[0]);
+          seats.release(fids[1]);
+        }
+        if (holds != null)
+          holds.settled(reservationId);
+        if (feed != null)
+          feed.publish(BookingFeed.Type.CANCEL, reservationId, username, fids[0], fids[1], fids[2]);
+        return "Canceled reservation " + reservationId + "\n";
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
     return "Failed to cancel reservation " + reservationId + "\n";
   }
 
+  /**
+   * Same as the cancel script, one statement at a time inside a transaction.
+   *
+   * @return the two flights of the canceled reservation and the amount refunded, or null if there was
+   * none to cancel
+   */
+  private int[] cancelWithStatements(int reservationId) throws SQLException
+  {
+    beginTransaction();
+    try {
+      cancelLookupStatement.clearParameters();
+      cancelLookupStatement.setInt(1, reservationId);
+      cancelLookupStatement.setString(2, username);
+      boolean paid;
+      int[] fids;
+      int[] canceled;
+      try (ResultSet rs = query(cancelLookupStatement)) {
+        if (!rs.next()) {
+          rollbackTransaction();
+          return null;
+        }
+        paid = rs.getInt("paid") == 1;
+        fids = new int[] { rs.getInt("fid1"), rs.getInt("fid2") };
+        canceled = new int[] { fids[0], fids[1], 0 };
+      }
+
+      cancelMarkStatement.clearParameters();
+      cancelMarkStatement.setInt(1, reservationId);
+      update(cancelMarkStatement);
+
+      int refund = 0;
+      for (int fid : fids) {
+        capacityRestoreStatement.setInt(1, fid);
+        capacityRestoreStatement.addBatch();
+        if (paid) {
+          flightPricStatement.clearParameters();
+          flightPricStatement.setInt(1, fid);
+          try (ResultSet price = query(flightPricStatement)) {
+            if (price.next()) {
+              refund += price.getInt("price");
+            }
+          }
+        }
+      }
+      statements.used(capacityRestoreStatement);
+      capacityRestoreStatement.executeBatch();
+      if (refund > 0) {
+        refundStatement.clearParameters();
+        refundStatement.setInt(1, refund);
+        refundStatement.setString(2, username);
+        update(refundStatement);
+        appendLedger(username, reservationId, refund, "REFUND");
+      }
+      commitTransaction();
+      canceled[2] = refund;
+      return canceled;
+    } catch (SQLException e) {
+      rollbackTransaction();
+      throw e;
+    }
+  }
+
   /**
    * Implements the pay function.
    *
@@ -661,90 +1469,412 @@ public class Query
    */
   public String transaction_pay (int reservationId)
   {
+    if (this.username == null) {
+      return "Cannot pay, not logged in\n";
+    }
+    pinToPrimary();
     try {
-      reservationCheckStatement.clearParameters();
-      getUserMoneyStatement.clearParameters();
+      payLookupStatement.clearParameters();
+      payLookupStatement.setInt(1, reservationId);
+      payLookupStatement.setString(2, username);
+      int fid1;
+      int fid2;
+      int cost;
+      try (ResultSet rs = query(payLookupStatement)) {
+        if (!rs.next()) {
+          return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
+        }
+        fid1 = rs.getInt("fid1");
+        fid2 = rs.getInt("fid2");
+        cost = rs.getInt("cost");
+      }
+
+      // every write below checks its own condition, so row locks are all it needs; a snapshot would make
+      // concurrent pays of the same user fail on the Users row instead of waiting for each other
+      beginTransaction(dialect.lockingIsolation());
+      // an expired hold or a concurrent pay may have got to the reservation since it was looked up
       updateReservationPaidStatement.clearParameters();
-      updateUserMoneyStatement.clearParameters();
-      if (this.username == null) {
-        return "Cannot pay, not logged in\n";
-      } else  {
-        reservationCheckStatement.setString(1,username);
-        ResultSet check = reservationCheckStatement.executeQuery();
-        if (!check.next()) {
-          return "Cannot find unpaid reservation " + reservationId +" under user: " + username+ "\n";
-        } else {
-          int rev_id = check.getInt("rev_id");
-          int paid = check.getInt("paid");
-          if (rev_id != reservationId || paid == 1) {
-            return "Cannot find unpaid reservation " + reservationId +" under user: " + username+ "\n";
+      updateReservationPaidStatement.setInt(1, reservationId);
+      if (update(updateReservationPaidStatement) == 0) {
+        rollbackTransaction();
+        return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
+      }
+      debitStatement.clearParameters();
+      debitStatement.setInt(1, cost);
+      debitStatement.setString(2, username);
+      debitStatement.setInt(3, cost);
+      if (update(debitStatement) == 0) {
+        rollbackTransaction();
+        return "User has only " + balance() + " in account but itinerary costs " + cost + "\n";
+      }
+      appendLedger(username, reservationId, -cost, "PAY");
+      int remainingBalance = balance();
+      commitTransaction();
+      if (holds != null)
+        holds.settled(reservationId);
+      if (feed != null)
+        feed.publish(BookingFeed.Type.PAY, reservationId, username, fid1, fid2, cost);
+      return "Paid reservation: " + reservationId + " remaining balance: " + remainingBalance + "\n";
+    } catch (SQLException e) {
+      e.printStackTrace();
+      try {
+        if (!conn.getAutoCommit())
+          rollbackTransaction();
+      } catch (SQLException ex) {
+        ex.printStackTrace();
+      }
+    }
+    return "Failed to pay for reservation " + reservationId + "\n";
+  }
+
+  /**
+   * @return the balance of the logged in user
+   */
+  private int balance() throws SQLException
+  {
+    getUserMoneyStatement.clearParameters();
+    getUserMoneyStatement.setString(1, username);
+    try (ResultSet rs = query(getUserMoneyStatement)) {
+      return rs.next() ? rs.getInt("balance") : 0;
+    }
+  }
+
+  /**
+   * Records a change of {@code user}'s balance, inside the transaction that makes it.
+   *
+   * @param reservationId the reservation paid or refunded, 0 for a deposit
+   */
+  private void appendLedger(String user, int reservationId, int amount, String kind) throws SQLException
+  {
+    ledgerInsertStatement.clearParameters();
+    ledgerInsertStatement.setString(1, user);
+    ledgerInsertStatement.setInt(2, reservationId);
+    ledgerInsertStatement.setInt(3, amount);
+    ledgerInsertStatement.setString(4, kind);
+    ledgerInsertStatement.setLong(5, System.currentTimeMillis());
+    update(ledgerInsertStatement);
+  }
+
+  /**
+   * @return every reservation that is neither paid nor canceled, with the time it was booked
+   */
+  List<HeldReservation> unpaidReservations() throws SQLException
+  {
+    List<HeldReservation> rows = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    try (ResultSet rs = query(unpaidReservationsStatement)) {
+      while (rs.next()) {
+        long bookedAt = rs.getLong("booked_at");
+        // booked before holds were kept: the hold starts now
+        if (rs.wasNull())
+          bookedAt = now;
+        rows.add(new HeldReservation(rs.getInt("rev_id"), rs.getInt("fid1"), rs.getInt("fid2"), bookedAt));
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Cancels the expired holds that are still unpaid and gives their seats back, all in one transaction.
+   */
+  void releaseHolds(List<SeatHolds.Hold> expired) throws SQLException
+  {
+    beginTransaction();
+    try {
+      expireHoldStatement.clearBatch();
+      for (SeatHolds.Hold h : expired) {
+        expireHoldStatement.setInt(1, h.reservationId);
+        expireHoldStatement.addBatch();
+      }
+      statements.used(expireHoldStatement);
+      int[] counts = expireHoldStatement.executeBatch();
+
+      List<Integer> released = new ArrayList<>();
+      List<SeatHolds.Hold> canceled = new ArrayList<>();
+      capacityRestoreStatement.clearBatch();
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 0) {
+          SeatHolds.Hold h = expired.get(i);
+          canceled.add(h);
+          for (int fid : new int[] { h.fid1, h.fid2 }) {
+            capacityRestoreStatement.setInt(1, fid);
+            capacityRestoreStatement.addBatch();
+            released.add(fid);
           }
         }
       }
-      getUserMoneyStatement.setString(1, username);
-      ResultSet userMoney = getUserMoneyStatement.executeQuery();
-      int userBalance = 0;
-      if (userMoney.next()) {
-        userBalance = userMoney.getInt("balance");
+      if (!released.isEmpty()) {
+        statements.used(capacityRestoreStatement);
+        capacityRestoreStatement.executeBatch();
       }
-      reservationCheckStatement.clearParameters();
-      reservationCheckStatement.setString(1,username);
-      ResultSet reservationDetails = reservationCheckStatement.executeQuery();
-      int fid1 = -1;
-      int fid2 = -1;
-      int totalFlightCost = 0;
-      if (reservationDetails.next()) {
-        fid1 = reservationDetails.getInt("fid1");
-        fid2 = reservationDetails.getInt("fid2");
-      }
-      ArrayList<Integer> flightIDS = new ArrayList<>();
-      flightIDS.add(fid1);
-      flightIDS.add(fid2);
-      for (int fid : flightIDS) {
-        flightPricStatement.clearParameters();
-        flightPricStatement.setInt(1,fid);
-        ResultSet flightPrice = flightPricStatement.executeQuery();
-        if (flightPrice.next()) {
-          totalFlightCost += flightPrice.getInt("price");
+      commitTransaction();
+      if (seats != null) {
+        for (int fid : released)
+          seats.release(fid);
+      }
+      if (feed != null) {
+        for (SeatHolds.Hold h : canceled)
+          feed.publish(BookingFeed.Type.EXPIRE, h.reservationId, null, h.fid1, h.fid2, 0);
+      }
+    } catch (SQLException e) {
+      rollbackTransaction();
+      throw e;
+    }
+  }
+
+  /**
+   * @return up to {@code limit} routes as {origin, destination, day}, most booked first
+   */
+  List<String[]> popularRoutes(int limit) throws SQLException
+  {
+    List<String[]> routes = new ArrayList<>();
+    popularRoutesStatement.clearParameters();
+    dialect.bindLimit(popularRoutesStatement, limit, 0);
+    try (ResultSet rs = query(popularRoutesStatement)) {
+      while (rs.next())
+        routes.add(new String[] { rs.getString("origin_city"), rs.getString("dest_city"), Integer.toString(rs.getInt("day")) });
+    }
+    return routes;
+  }
+
+  /**
+   * Looks for states that correct transactions can never produce: flights with more live reservations
+   * than seats, negative remaining capacity, negative account balances and balances that don't add up to
+   * their user's Ledger entries.
+   *
+   * @return one line per violation, empty if none were found
+   */
+  public List<String> checkInvariants()
+  {
+    List<String> violations = new ArrayList<>();
+    try {
+      try (ResultSet rs = query(overbookedFlightsStatement)) {
+        while (rs.next()) {
+          violations.add("Flight " + rs.getInt("fid") + " has " + rs.getInt("booked") + " reservations but "
+                  + rs.getInt("capacity") + " seats");
         }
       }
-      beginTransaction();
-      if (userBalance >= totalFlightCost) {
-        int remainingBalance = userBalance - totalFlightCost;
-        updateUserMoneyStatement.setInt(1,remainingBalance);
-        updateUserMoneyStatement.setString(2,username);
-        updateReservationPaidStatement.setInt(1,reservationId);
-        updateUserMoneyStatement.executeUpdate();
-        updateReservationPaidStatement.executeUpdate();
-        commitTransaction();
-        return "Paid reservation: " + reservationId + " remaining balance: " + remainingBalance + "\n";
-      } else {
-        rollbackTransaction();
-        return "User has only " + userBalance + " in account but itinerary costs " + totalFlightCost + "\n";
+      try (ResultSet rs = query(negativeCapacityStatement)) {
+        while (rs.next()) {
+          violations.add("Flight " + rs.getInt("fid") + " has negative capacity " + rs.getInt("capacity"));
+        }
+      }
+      try (ResultSet rs = query(negativeBalanceStatement)) {
+        while (rs.next()) {
+          violations.add("User " + rs.getString("username") + " has negative balance " + rs.getInt("balance"));
+        }
+      }
+      try (ResultSet rs = query(unreconciledStatement)) {
+        while (rs.next()) {
+          violations.add("User " + rs.getString("username") + " has balance " + rs.getInt("balance")
+                  + " but the ledger adds up to " + rs.getInt("total"));
+        }
       }
     } catch (SQLException e) {
       e.printStackTrace();
+      violations.add("Failed to check invariants: " + e.getMessage());
     }
-      return "Failed to pay for reservation " + reservationId + "\n";
+    return violations;
   }
 
   /* some utility functions below */
 
+  private ResultSet query(PreparedStatement ps) throws SQLException
+  {
+    statements.used(ps);
+    if (replicaStatements != null)
+      replicaStatements.used(ps);
+    if (profile == null)
+      return ps.executeQuery();
+    long start = System.nanoTime();
+    ResultSet rs = ps.executeQuery();
+    return profile.track(rs, sql(ps), System.nanoTime() - start);
+  }
+
+  private int update(PreparedStatement ps) throws SQLException
+  {
+    statements.used(ps);
+    if (profile == null)
+      return ps.executeUpdate();
+    long start = System.nanoTime();
+    int rows = ps.executeUpdate();
+    profile.updated(sql(ps), System.nanoTime() - start, rows);
+    return rows;
+  }
+
+  /**
+   * Runs {@code command} and adds a breakdown of where its time went to its response.
+   */
+  String profile(Supplier<String> command)
+  {
+    profile = new CommandProfile();
+    try {
+      String response = command.get();
+      return response + profile.report();
+    } finally {
+      profile = null;
+    }
+  }
+
+  /**
+   * @return the SQL of {@code ps}, marked if it ran on the replica
+   */
+  private String sql(PreparedStatement ps)
+  {
+    String sql = statements.sql(ps);
+    if (sql != null)
+      return sql;
+    sql = replicaStatements == null ? null : replicaStatements.sql(ps);
+    return sql != null ? "[replica] " + sql : ps.toString();
+  }
+
+  /**
+   * @return what a profile calls the statement of a search ranked by {@code rank}
+   */
+  private static String searchLabel(String search, SearchRank rank)
+  {
+    switch (rank.mode) {
+      case PRICE:
+        return search + " by price";
+      case WEIGHTED:
+        return search + " by weighted time and price";
+      case PARETO:
+        return search + " for the Pareto front";
+      default:
+        return search;
+    }
+  }
+
+  /**
+   * Adds the plan of the search statement {@code ps}, which just ran, to the profile.
+   */
+  private void explain(String label, PreparedStatement ps, SqlDialect.Binder binder) throws SQLException
+  {
+    String sql = statements.sql(ps) != null ? statements.sql(ps) : replicaStatements.sql(ps);
+    Connection c = ps.getConnection();
+    CommandProfile p = profile;
+    p.plan(label, () -> {
+      try {
+        return dialect.plan(c, sql, binder);
+      } finally {
+        // the binder told the profile about parameters of a statement it doesn't list
+        p.clearParameters();
+      }
+    });
+  }
+
+  /**
+   * @return how often each prepared statement of this session was used
+   */
+  public String statementStats()
+  {
+    return replicaStatements == null ? statements.stats()
+            : statements.stats() + "replica:\n" + replicaStatements.stats();
+  }
+
+  /**
+   * Prepares a statement that only reads, on the primary and, if there is one, on the replica.
+   *
+   * @return the statement on the primary
+   */
+  private PreparedStatement prepareRead(String sql, int fetchSize) throws SQLException
+  {
+    PreparedStatement ps = statements.prepare(sql, fetchSize);
+    if (replicaStatements != null)
+      replicated.put(ps, replicaStatements.prepare(sql, fetchSize));
+    return ps;
+  }
+
+  /**
+   * @param ps a statement prepared with prepareRead
+   * @return the statement to run it on: the replica's, unless the session wrote a moment ago
+   */
+  private PreparedStatement reading(PreparedStatement ps)
+  {
+    if (replica == null || (pinned && System.nanoTime() - pinnedUntil < 0))
+      return ps;
+    return replicated.getOrDefault(ps, ps);
+  }
+
+  private interface Read<T>
+  {
+    T run() throws SQLException;
+  }
+
+  /**
+   * Runs {@code read}, and if the replica went away meanwhile, drops it and runs {@code read} again on the
+   * primary. The session reads from the primary from then on.
+   */
+  private <T> T failingOver(Read<T> read) throws SQLException
+  {
+    try {
+      return read.run();
+    } catch (SQLException e) {
+      if (replica == null || replica.isValid(1))
+        throw e;
+      System.err.println("replica lost, reading from the primary: " + e.getMessage());
+      replicated.clear();
+      try {
+        replicaStatements.closeAll();
+        replica.close();
+      } catch (Exception ex) {
+        // it is gone either way
+      }
+      replica = null;
+      replicaStatements = null;
+      return read.run();
+    }
+  }
+
+  /**
+   * Makes the session read from the primary for flightservice.replica_pin_millis, which should be longer
+   * than the replicas lag behind, so that it sees the write it is about to make.
+   */
+  private void pinToPrimary()
+  {
+    if (replica != null) {
+      pinned = true;
+      pinnedUntil = System.nanoTime() + pinNanos;
+    }
+  }
+
   public void beginTransaction() throws SQLException
   {
+    beginTransaction(Connection.TRANSACTION_SERIALIZABLE);
+  }
+
+  /**
+   * @param isolation JDBC isolation level, for engines without a begin statement; SQL Server transactions
+   * are always serializable
+   */
+  private void beginTransaction(int isolation) throws SQLException
+  {
+    if (beginTransactionStatement == null) {
+      conn.setTransactionIsolation(isolation);
+    }
     conn.setAutoCommit(false);
-    beginTransactionStatement.executeUpdate();
+    if (beginTransactionStatement != null) {
+      update(beginTransactionStatement);
+    }
   }
 
   public void commitTransaction() throws SQLException
   {
-    commitTransactionStatement.executeUpdate();
+    if (commitTransactionStatement != null) {
+      update(commitTransactionStatement);
+    } else {
+      conn.commit();
+    }
     conn.setAutoCommit(true);
   }
 
   public void rollbackTransaction() throws SQLException
   {
-    rollbackTransactionStatement.executeUpdate();
+    if (rollbackTransactionStatement != null) {
+      update(rollbackTransactionStatement);
+    } else {
+      conn.rollback();
+    }
     conn.setAutoCommit(true);
   }
 
@@ -756,11 +1886,9 @@ public class Query
   {
     checkFlightCapacityStatement.clearParameters();
     checkFlightCapacityStatement.setInt(1, fid);
-    ResultSet results = checkFlightCapacityStatement.executeQuery();
-    results.next();
-    int capacity = results.getInt("capacity");
-    results.close();
-
-    return capacity;
+    try (ResultSet results = query(checkFlightCapacityStatement)) {
+      results.next();
+      return results.getInt("capacity");
+    }
   }
 }
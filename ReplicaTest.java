@@ -0,0 +1,123 @@
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs sessions with flightservice.replica_urls pointing at a second local H2 database, which is never
+ * written to and so stands in for a replica that lags behind. It starts out with the same flights as
+ * the primary, minus one, so the search results show which database a search read.
+ */
+public class ReplicaTest
+{
+  static final String PIN_MILLIS = "1000";
+  // on the primary only
+  static final String PRIMARY_ONLY_FLIGHT = "887205";
+  static final String SEARCH = "search \"Kahului HI\" \"Los Angeles CA\" 1 6 7";
+
+  private Connection replica;
+  private Query q;
+
+  /**
+   * Sets up the replica at {@code url} and opens a session that reads from it.
+   */
+  private Query open (String url) throws Exception
+  {
+    Properties config = new Properties();
+    try (FileInputStream in = new FileInputStream("dbconn.local.properties")) {
+      config.load(in);
+    }
+    config.setProperty("flightservice.replica_urls", url);
+    config.setProperty("flightservice.replica_pin_millis", PIN_MILLIS);
+    File file = File.createTempFile("replica", ".properties");
+    file.deleteOnExit();
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      config.store(out, null);
+    }
+
+    replica = DriverManager.getConnection(url, config.getProperty("flightservice.sqlazure_username"),
+            config.getProperty("flightservice.sqlazure_password"));
+    LocalDatabase.initialize(replica, url, config);
+    try (Statement st = replica.createStatement()) {
+      st.executeUpdate("DELETE FROM Reservations");
+      st.executeUpdate("DELETE FROM FLIGHTS WHERE fid = " + PRIMARY_ONLY_FLIGHT);
+    }
+
+    q = new Query(file.getPath());
+    q.openConnection();
+    q.prepareStatements();
+    q.clearTables();
+    assertEquals("Created user alice\n", FlightService.execute(q, "create alice pw 100000"));
+    assertEquals("Logged in as alice\n", FlightService.execute(q, "login alice pw"));
+    return q;
+  }
+
+  @After
+  public void close () throws Exception
+  {
+    q.closeConnection();
+    if (!replica.isClosed())
+      replica.close();
+  }
+
+  private void expirePin () throws InterruptedException
+  {
+    Thread.sleep(Long.parseLong(PIN_MILLIS) + 100);
+  }
+
+  @Test
+  public void readsYourWritesWhilePinned () throws Exception
+  {
+    open("jdbc:h2:mem:replica_pinned;DB_CLOSE_DELAY=-1;NON_KEYWORDS=DAY");
+    assertFalse(FlightService.execute(q, SEARCH).contains(PRIMARY_ONLY_FLIGHT));
+
+    // book: the primary has the reservation, the replica doesn't yet
+    assertEquals("Booked flight(s), reservation ID: 1\n", FlightService.execute(q, "book 0"));
+    assertTrue(FlightService.execute(q, "reservations").startsWith("Reservation 1 paid: false:"));
+    assertTrue(FlightService.execute(q, SEARCH).contains(PRIMARY_ONLY_FLIGHT));
+    expirePin();
+    assertEquals("No reservations found\n", FlightService.execute(q, "reservations"));
+    assertFalse(FlightService.execute(q, SEARCH).contains(PRIMARY_ONLY_FLIGHT));
+
+    // the replica catches up with the booking but not yet with the payment
+    try (Statement st = replica.createStatement()) {
+      st.executeUpdate("INSERT INTO Reservations VALUES(1, 0, 'alice', 0, 131239, -1, 6, 0, 0)");
+    }
+    assertTrue(FlightService.execute(q, "reservations").startsWith("Reservation 1 paid: false:"));
+    assertTrue(FlightService.execute(q, "pay 1").startsWith("Paid reservation: 1"));
+    assertTrue(FlightService.execute(q, "reservations").startsWith("Reservation 1 paid: true:"));
+    expirePin();
+    assertTrue(FlightService.execute(q, "reservations").startsWith("Reservation 1 paid: false:"));
+
+    // cancel: the replica shows the reservation until it catches up
+    assertEquals("Canceled reservation 1\n", FlightService.execute(q, "cancel 1"));
+    assertEquals("No reservations found\n", FlightService.execute(q, "reservations"));
+    expirePin();
+    assertTrue(FlightService.execute(q, "reservations").startsWith("Reservation 1 paid: false:"));
+  }
+
+  @Test
+  public void failsOverToThePrimary () throws Exception
+  {
+    open("jdbc:h2:mem:replica_lost;DB_CLOSE_DELAY=-1;NON_KEYWORDS=DAY");
+    assertFalse(FlightService.execute(q, SEARCH).contains(PRIMARY_ONLY_FLIGHT));
+
+    try (Statement st = replica.createStatement()) {
+      st.execute("SHUTDOWN");
+    }
+    String search = FlightService.execute(q, SEARCH);
+    assertTrue(search, search.startsWith("Itinerary 0:"));
+    assertTrue(search.contains(PRIMARY_ONLY_FLIGHT));
+    assertEquals("No reservations found\n", FlightService.execute(q, "reservations"));
+  }
+}
@@ -0,0 +1,75 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that sessions on different schemas, as the parallel grader gives its cases, share FLIGHTS but
+ * not Users, Reservations or Ledger. Runs on the local H2 database.
+ */
+public class SchemaIsolationTest
+{
+  static final String DBCONFIG = "dbconn.local.properties";
+
+  private Query a;
+  private Query b;
+
+  private static Query open (String schema) throws Exception
+  {
+    Query q = new Query(DBCONFIG, schema);
+    q.openConnection();
+    q.prepareStatements();
+    q.clearTables();
+    return q;
+  }
+
+  @Before
+  public void open () throws Exception
+  {
+    a = open("isolation_a");
+    b = open("isolation_b");
+  }
+
+  @After
+  public void close () throws Exception
+  {
+    a.closeConnection();
+    b.closeConnection();
+  }
+
+  @Test
+  public void usersAreSeparate ()
+  {
+    assertEquals("Created user alice\n", FlightService.execute(a, "create alice pw 1000"));
+    assertEquals("Login failed\n", FlightService.execute(b, "login alice pw"));
+    assertEquals("Created user alice\n", FlightService.execute(b, "create alice other 1000"));
+  }
+
+  @Test
+  public void flightsAreShared ()
+  {
+    String search = "search \"Seattle WA\" \"Boston MA\" 1 1 3";
+    assertEquals(FlightService.execute(a, search), FlightService.execute(b, search));
+  }
+
+  @Test
+  public void reservationsAndLedgerAreSeparate ()
+  {
+    for (Query q : new Query[] { a, b }) {
+      FlightService.execute(q, "create alice pw 1000");
+      FlightService.execute(q, "login alice pw");
+      FlightService.execute(q, "search \"Seattle WA\" \"Boston MA\" 1 1 1");
+    }
+
+    // both schemas number their reservations from 1
+    assertEquals("Booked flight(s), reservation ID: 1\n", FlightService.execute(a, "book 0"));
+    assertEquals("Booked flight(s), reservation ID: 1\n", FlightService.execute(b, "book 0"));
+
+    // paying in one schema leaves the other's balance alone
+    String paid = FlightService.execute(a, "pay 1");
+    assertEquals(paid, FlightService.execute(b, "pay 1"));
+    assertEquals("Cannot find unpaid reservation 1 under user: alice\n", FlightService.execute(a, "pay 1"));
+    assertEquals("Cannot find unpaid reservation 1 under user: alice\n", FlightService.execute(b, "pay 1"));
+  }
+}
@@ -0,0 +1,133 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * How search orders itineraries before it cuts them at the number asked for. Given as an optional last
+ * argument of the search command:
+ *
+ *   duration      shortest total flight time first (the default)
+ *   price         cheapest first
+ *   weighted[:w]  smallest (1 - w) * minutes + w * dollars first, w = 0.5 if left out
+ *   pareto        only itineraries that no other one beats on both time and price, fastest first
+ *
+ * Ties are broken the same way in every mode, by the order the database returns rows in.
+ */
+public class SearchRank
+{
+  public enum Mode { DURATION, PRICE, WEIGHTED, PARETO }
+
+  public static final SearchRank DURATION = new SearchRank(Mode.DURATION, 0);
+  public static final SearchRank PRICE = new SearchRank(Mode.PRICE, 1);
+  public static final SearchRank PARETO = new SearchRank(Mode.PARETO, 0);
+
+  public final Mode mode;
+  // weight of price against time in WEIGHTED mode, from 0 to 1
+  public final double weight;
+
+  private SearchRank(Mode mode, double weight)
+  {
+    this.mode = mode;
+    this.weight = weight;
+  }
+
+  /**
+   * @return the mode named by {@code s}, or null if there is no such mode
+   */
+  public static SearchRank parse(String s)
+  {
+    switch (s) {
+      case "duration":
+        return DURATION;
+      case "price":
+        return PRICE;
+      case "pareto":
+        return PARETO;
+      case "weighted":
+        return new SearchRank(Mode.WEIGHTED, 0.5);
+    }
+    if (s.startsWith("weighted:")) {
+      try {
+        double w = Double.parseDouble(s.substring("weighted:".length()));
+        if (w >= 0 && w <= 1)
+          return new SearchRank(Mode.WEIGHTED, w);
+      } catch (NumberFormatException e) {
+        // falls through to null
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the order of the itineraries in the result; for PARETO, the order of the front
+   */
+  public Comparator<Query.Itinerary> order()
+  {
+    switch (mode) {
+      case PRICE:
+        return Comparator.comparingInt(Query.Itinerary::totalPrice);
+      case WEIGHTED:
+        return Comparator.comparingDouble(this::score);
+      default:
+        return Comparator.comparingInt(Query.Itinerary::totalTime);
+    }
+  }
+
+  double score(Query.Itinerary it)
+  {
+    return (1 - weight) * it.totalTime() + weight * it.totalPrice();
+  }
+
+  /**
+   * The Pareto front of itineraries offered in order of time: an itinerary is kept if it is cheaper than
+   * every faster one. Among equally fast ones only the cheapest is kept.
+   */
+  static class Front
+  {
+    private final List<Query.Itinerary> items = new ArrayList<>();
+    private final int limit;
+    // no itinerary is cheaper than this, so the front is complete once it gets there
+    private final int floor;
+
+    Front(int limit)
+    {
+      this(limit, Integer.MIN_VALUE);
+    }
+
+    Front(int limit, int floor)
+    {
+      this.limit = limit;
+      this.floor = floor;
+    }
+
+    /**
+     * @param it no faster than anything offered before
+     * @return false once the front has {@code limit} itineraries, all faster than anything still to come,
+     * or has reached the floor price
+     */
+    boolean offer(Query.Itinerary it)
+    {
+      int last = items.size() - 1;
+      if (last >= 0 && items.get(last).totalTime() == it.totalTime()) {
+        if (it.totalPrice() < items.get(last).totalPrice()) {
+          items.remove(last);
+          last--;
+        } else {
+          return true;
+        }
+      }
+      // prices fall along the front, so the last one is the lowest so far
+      if (last < 0 || it.totalPrice() < items.get(last).totalPrice())
+        items.add(it);
+      if (items.get(items.size() - 1).totalPrice() <= floor)
+        return false;
+      // a full front can still change only if an equally fast, cheaper one replaces its last itinerary
+      return items.size() < limit || (items.size() == limit && items.get(limit - 1).totalTime() == it.totalTime());
+    }
+
+    List<Query.Itinerary> items()
+    {
+      return items.size() > limit ? new ArrayList<>(items.subList(0, limit)) : items;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the Pareto front of {@link SearchRank.Front} against a brute force one, with and without the
+ * floor price that lets a search stop early.
+ */
+public class SearchRankTest
+{
+  static Query.Itinerary itinerary (int time, int price)
+  {
+    Query.Flight f = new Query.Flight();
+    f.time = time;
+    f.price = price;
+    return new Query.Itinerary(f);
+  }
+
+  static String describe (List<Query.Itinerary> itineraries)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (Query.Itinerary it : itineraries)
+      sb.append(it.totalTime()).append('/').append(it.totalPrice()).append(' ');
+    return sb.toString();
+  }
+
+  /**
+   * @return the itineraries no other one beats on time and price, the cheapest of equally fast ones,
+   * fastest first and at most {@code limit} of them
+   */
+  static List<Query.Itinerary> bruteForce (List<Query.Itinerary> all, int limit)
+  {
+    List<Query.Itinerary> front = new ArrayList<>();
+    for (Query.Itinerary it : all) {
+      boolean beaten = false;
+      for (Query.Itinerary other : all)
+        beaten |= other.totalTime() <= it.totalTime() && other.totalPrice() <= it.totalPrice()
+                && (other.totalTime() < it.totalTime() || other.totalPrice() < it.totalPrice());
+      boolean duplicate = false;
+      for (Query.Itinerary kept : front)
+        duplicate |= kept.totalTime() == it.totalTime() && kept.totalPrice() == it.totalPrice();
+      if (!beaten && !duplicate)
+        front.add(it);
+    }
+    front.sort(SearchRank.DURATION.order());
+    return front.size() > limit ? front.subList(0, limit) : front;
+  }
+
+  /**
+   * Offers {@code sorted} until the front says it is complete.
+   *
+   * @return how many were offered
+   */
+  static int offerAll (SearchRank.Front front, List<Query.Itinerary> sorted)
+  {
+    int offered = 0;
+    for (Query.Itinerary it : sorted) {
+      offered++;
+      if (!front.offer(it))
+        break;
+    }
+    return offered;
+  }
+
+  @Test
+  public void keepsOnlyCheaperFasterOnes ()
+  {
+    SearchRank.Front front = new SearchRank.Front(10);
+    assertTrue(front.offer(itinerary(100, 500)));
+    assertTrue(front.offer(itinerary(100, 400)));   // replaces the first, same time and cheaper
+    assertTrue(front.offer(itinerary(100, 450)));   // same time, dearer: dropped
+    assertTrue(front.offer(itinerary(120, 400)));   // slower and no cheaper: dropped
+    assertTrue(front.offer(itinerary(150, 300)));
+    assertTrue(front.offer(itinerary(200, 100)));
+    assertEquals("100/400 150/300 200/100 ", describe(front.items()));
+  }
+
+  @Test
+  public void stopsAtTheLimitUnlessTied ()
+  {
+    SearchRank.Front front = new SearchRank.Front(2);
+    assertTrue(front.offer(itinerary(100, 500)));
+    // the second one fills the front, but an equally fast one may still be cheaper
+    assertTrue(front.offer(itinerary(110, 400)));
+    assertTrue(front.offer(itinerary(110, 300)));
+    assertFalse(front.offer(itinerary(120, 100)));
+    assertEquals("100/500 110/300 ", describe(front.items()));
+  }
+
+  @Test
+  public void stopsAtTheFloor ()
+  {
+    SearchRank.Front front = new SearchRank.Front(10, 200);
+    assertTrue(front.offer(itinerary(100, 500)));
+    assertTrue(front.offer(itinerary(110, 250)));
+    assertFalse(front.offer(itinerary(130, 200)));
+    assertEquals("100/500 110/250 130/200 ", describe(front.items()));
+  }
+
+  @Test
+  public void matchesTheBruteForceFront ()
+  {
+    Random r = new Random(42);
+    int stoppedEarly = 0;
+    for (int n = 0; n < 2000; n++) {
+      List<Query.Itinerary> all = new ArrayList<>();
+      int size = 1 + r.nextInt(60);
+      int cheapest = Integer.MAX_VALUE;
+      for (int i = 0; i < size; i++) {
+        Query.Itinerary it = itinerary(60 + r.nextInt(40), 100 + r.nextInt(30));
+        all.add(it);
+        cheapest = Math.min(cheapest, it.totalPrice());
+      }
+      // in the order of the one-stop query: by time, ties in no particular order
+      all.sort(SearchRank.DURATION.order());
+      int limit = 1 + r.nextInt(12);
+      String expected = describe(bruteForce(all, limit));
+
+      SearchRank.Front plain = new SearchRank.Front(limit);
+      offerAll(plain, all);
+      assertEquals("case " + n, expected, describe(plain.items()));
+
+      // the floor only cuts the scan short, never the front
+      SearchRank.Front floored = new SearchRank.Front(limit, cheapest);
+      if (offerAll(floored, all) < all.size())
+        stoppedEarly++;
+      assertEquals("case " + n + " with floor " + cheapest, expected, describe(floored.items()));
+    }
+    assertTrue("the floor never cut a scan short", stoppedEarly > 0);
+  }
+}
@@ -0,0 +1,125 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remaining seats per flight, kept in memory so that search can show them without a query.
+ *
+ * Only flights that have been booked have an entry; any other flight still has all the seats of its
+ * Flights row. The map is seeded from the Capacity table when a database is first opened and then
+ * follows every book and cancel made in this process, so it is a hint: book still checks the Capacity
+ * table inside its transaction. There is one map per database and customer schema, shared by all the
+ * sessions of the JVM. A flight canceled by a schedule change has no seats left, whatever is booked or
+ * canceled on it afterwards.
+ */
+public class SeatAvailability implements FlightsLoader.ScheduleListener
+{
+  private static final Map<String, SeatAvailability> DATABASES = new ConcurrentHashMap<>();
+  private static final ReentrantLock loading = new ReentrantLock();
+
+  private final Map<Integer, Integer> remaining = new ConcurrentHashMap<>();
+  // flights canceled by schedule changes
+  private final Set<Integer> canceled = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @return the map for {@code url} and {@code schema}, seeded from {@code conn} the first time
+   */
+  public static SeatAvailability forDatabase(Connection conn, String url, String schema) throws SQLException
+  {
+    String key = schema == null ? url : url + "#" + schema;
+    SeatAvailability seats = DATABASES.get(key);
+    if (seats != null)
+      return seats;
+    loading.lock();
+    try {
+      seats = DATABASES.get(key);
+      if (seats == null) {
+        seats = new SeatAvailability();
+        seats.load(conn);
+        DATABASES.put(key, seats);
+      }
+      return seats;
+    } finally {
+      loading.unlock();
+    }
+  }
+
+  private void load(Connection conn) throws SQLException
+  {
+    try (Statement st = conn.createStatement();
+         ResultSet rs = st.executeQuery("SELECT fid, capacity FROM Capacity")) {
+      while (rs.next())
+        remaining.put(rs.getInt("fid"), rs.getInt("capacity"));
+    }
+  }
+
+  /**
+   * @param capacity the seat count of the flight's Flights row
+   * @return seats left on flight {@code fid}
+   */
+  public int remaining(int fid, int capacity)
+  {
+    Integer left = remaining.get(fid);
+    return left == null ? capacity : left;
+  }
+
+  /**
+   * @return true if flight {@code fid} is known to have no seat left
+   */
+  public boolean soldOut(int fid)
+  {
+    Integer left = remaining.get(fid);
+    return left != null && left <= 0;
+  }
+
+  /**
+   * Records the seats left on {@code fid} after a committed booking.
+   */
+  public void set(int fid, int seats)
+  {
+    if (!canceled.contains(fid))
+      remaining.put(fid, seats);
+  }
+
+  /**
+   * Gives one seat back after a committed cancel.
+   */
+  public void release(int fid)
+  {
+    remaining.computeIfPresent(fid, (k, left) -> canceled.contains(k) ? left : left + 1);
+  }
+
+  /**
+   * Forgets every booking, after the customer tables were cleared.
+   */
+  public void clear()
+  {
+    remaining.clear();
+    for (int fid : canceled)
+      remaining.put(fid, 0);
+  }
+
+  @Override
+  public void flightAdded(int fid)
+  {
+    // a new flight has all its seats, like any flight without an entry
+  }
+
+  @Override
+  public void flightCanceled(int fid)
+  {
+    canceled.add(fid);
+    remaining.put(fid, 0);
+  }
+
+  @Override
+  public void flightRetimed(int fid, int actualTime)
+  {
+    // search reads the times from FLIGHTS
+  }
+}
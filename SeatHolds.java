@@ -0,0 +1,150 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Expires unpaid reservations once they have held their seats for {@code flightservice.hold_ttl_seconds}.
+ *
+ * Every booking schedules its hold on a {@link HashedTimerWheel}; paying or canceling takes it off again.
+ * A daemon thread advances the wheel every tick and releases all the holds that expired during that
+ * tick in one transaction on its own connection. The release only touches reservations that are still
+ * unpaid, so a payment that wins the race keeps its seats. When a database is first opened, the unpaid
+ * reservations already in it are scheduled from their booked_at time, so holds survive a restart.
+ * There is one instance per database and customer schema.
+ */
+public class SeatHolds
+{
+  static final class Hold
+  {
+    final int reservationId;
+    final int fid1;
+    final int fid2;
+
+    Hold(int reservationId, int fid1, int fid2)
+    {
+      this.reservationId = reservationId;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+    }
+  }
+
+  private static final Map<String, SeatHolds> DATABASES = new ConcurrentHashMap<>();
+  private static final ReentrantLock starting = new ReentrantLock();
+
+  private final long ttlMillis;
+  private final long tickMillis;
+  private final HashedTimerWheel<Hold> wheel;
+  private final Map<Integer, HashedTimerWheel.Timeout<Hold>> holds = new ConcurrentHashMap<>();
+  // connection the holds are released on
+  private final Query expirer;
+
+  /**
+   * @return the holds of the database at {@code url} and {@code schema}, started the first time
+   */
+  static SeatHolds forDatabase(String configFilename, String url, String schema, long ttlMillis, long tickMillis)
+          throws Exception
+  {
+    String key = schema == null ? url : url + "#" + schema;
+    SeatHolds holds = DATABASES.get(key);
+    if (holds != null)
+      return holds;
+    starting.lock();
+    try {
+      holds = DATABASES.get(key);
+      if (holds == null) {
+        Query expirer = new Query(configFilename, schema);
+        expirer.expiresHolds = true;
+        expirer.openConnection();
+        expirer.prepareStatements();
+        holds = new SeatHolds(expirer, ttlMillis, tickMillis);
+        DATABASES.put(key, holds);
+      }
+      return holds;
+    } finally {
+      starting.unlock();
+    }
+  }
+
+  private SeatHolds(Query expirer, long ttlMillis, long tickMillis) throws Exception
+  {
+    this.expirer = expirer;
+    this.ttlMillis = ttlMillis;
+    this.tickMillis = tickMillis;
+    long now = System.currentTimeMillis();
+    // a turn of the wheel covers one TTL, so most holds expire on their first visit
+    this.wheel = new HashedTimerWheel<>(tickMillis, (int) Math.min(1 << 16, Math.max(64, ttlMillis / tickMillis)), now);
+
+    for (Query.HeldReservation r : expirer.unpaidReservations())
+      schedule(new Hold(r.id, r.fid1, r.fid2), r.bookedAt + ttlMillis);
+
+    Thread ticker = new Thread(this::run, "seat-holds");
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  /**
+   * Starts the hold of a reservation booked just now.
+   */
+  public void hold(int reservationId, int fid1, int fid2)
+  {
+    schedule(new Hold(reservationId, fid1, fid2), System.currentTimeMillis() + ttlMillis);
+  }
+
+  /**
+   * Ends the hold of a reservation that was paid or canceled.
+   */
+  public void settled(int reservationId)
+  {
+    HashedTimerWheel.Timeout<Hold> t = holds.remove(reservationId);
+    if (t != null)
+      t.cancel();
+  }
+
+  /**
+   * Drops every hold, after the customer tables were cleared and reservation IDs start over.
+   */
+  public void clear()
+  {
+    for (HashedTimerWheel.Timeout<Hold> t : holds.values())
+      t.cancel();
+    holds.clear();
+  }
+
+  public long ttlMillis()
+  {
+    return ttlMillis;
+  }
+
+  private void schedule(Hold hold, long deadline)
+  {
+    HashedTimerWheel.Timeout<Hold> old = holds.put(hold.reservationId, wheel.schedule(hold, deadline));
+    if (old != null)
+      old.cancel();
+  }
+
+  private void run()
+  {
+    List<Hold> expired = new ArrayList<>();
+    while (true) {
+      try {
+        Thread.sleep(tickMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+      wheel.advance(System.currentTimeMillis(), expired);
+      if (expired.isEmpty())
+        continue;
+      for (Hold h : expired)
+        holds.computeIfPresent(h.reservationId, (id, t) -> t.item() == h ? null : t);
+      try {
+        expirer.releaseHolds(expired);
+      } catch (Exception e) {
+        // the reservations stay booked; pay or cancel still work on them
+        e.printStackTrace();
+      }
+      expired.clear();
+    }
+  }
+}
@@ -0,0 +1,84 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Measures how the session execution model scales with the number of concurrent users.
+ *
+ * Each simulated session runs -Dops commands. A command waits -Dthink ms, which stands for the user
+ * and the network, and then holds a database permit for -Dlatency ms, which stands for the JDBC round
+ * trip. The database side is simulated so that the same run can go from 100 to 100k sessions, far past
+ * the number of connections a real server would accept.
+ *
+ * Runs with virtual threads when the JDK has them, and with platform threads for comparison:
+ *   java -Dpermits=32 -Dsessions=100,1000,10000,100000 SessionBenchmark
+ *
+ * Every platform thread reserves a native stack, and the JVM can die outright before it throws
+ * OutOfMemoryError, so sizes above -DmaxPlatform (10000) only run on virtual threads.
+ */
+public class SessionBenchmark
+{
+  public static void main(String[] args) throws Exception
+  {
+    int permits = Integer.getInteger("permits", 32);
+    int ops = Integer.getInteger("ops", 5);
+    long think = Long.getLong("think", 200);
+    long latency = Long.getLong("latency", 2);
+    String[] sizes = System.getProperty("sessions", "100,1000,10000,100000").split(",");
+    int maxPlatform = Integer.getInteger("maxPlatform", 10000);
+
+    System.out.println("virtual threads available: " + SessionExecutor.virtualThreadsAvailable());
+    System.out.println(String.format("%-8s %9s %10s %12s %12s %12s", "threads", "sessions", "seconds",
+            "commands/s", "p50 session", "p99 session"));
+
+    boolean[] modes = SessionExecutor.virtualThreadsAvailable() ? new boolean[] { true, false } : new boolean[] { false };
+    for (boolean virtual : modes)
+    {
+      for (String size : sizes)
+      {
+        int sessions = Integer.parseInt(size.trim());
+        if (!virtual && sessions > maxPlatform)
+        {
+          System.out.println(String.format("%-8s %9d   skipped, above -DmaxPlatform=%d", "platform", sessions,
+                  maxPlatform));
+          continue;
+        }
+        run(virtual, sessions, permits, ops, think, latency);
+      }
+    }
+  }
+
+  static void run(boolean virtual, int sessions, int permits, int ops, long think, long latency) throws Exception
+  {
+    SessionExecutor executor = new SessionExecutor(permits, virtual);
+    List<Future<Long>> futures = new ArrayList<>(sessions);
+    long start = System.nanoTime();
+    for (int i = 0; i < sessions; ++i)
+    {
+      futures.add(executor.submit(() -> {
+        long begin = System.nanoTime();
+        for (int op = 0; op < ops; ++op)
+        {
+          Thread.sleep(think);
+          executor.db(() -> {
+            Thread.sleep(latency);
+            return null;
+          });
+        }
+        return System.nanoTime() - begin;
+      }));
+    }
+
+    long[] durations = new long[sessions];
+    for (int i = 0; i < sessions; ++i)
+      durations[i] = futures.get(i).get();
+    long elapsed = System.nanoTime() - start;
+    executor.shutdown();
+
+    Arrays.sort(durations);
+    System.out.println(String.format("%-8s %9d %10.2f %12.0f %10.0fms %10.0fms", virtual ? "virtual" : "platform",
+            sessions, elapsed / 1e9, (double) sessions * ops / (elapsed / 1e9),
+            durations[sessions / 2] / 1e6, durations[Math.min(sessions - 1, (int) (sessions * 0.99))] / 1e6));
+  }
+}
@@ -0,0 +1,106 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every session on its own thread, and lets at most {@code dbPermits} of them talk to the
+ * database at the same time.
+ *
+ * Sessions spend almost all of their time blocked on JDBC or waiting for the next command, so on
+ * JDK 21 and later each one gets a virtual thread and idle sessions cost next to nothing. Older JDKs
+ * fall back to a cached pool of platform threads. The semaphore keeps the number of statements in
+ * flight at what the database can serve however many sessions there are.
+ *
+ * Virtual threads are pinned to their carrier while they block inside a synchronized block, so code
+ * that runs inside {@link #db} should use java.util.concurrent locks rather than synchronized around
+ * blocking calls. That is why the per-database registries, like {@link SeatHolds} and {@link BookingShards},
+ * start their instances under a ReentrantLock.
+ */
+public class SessionExecutor
+{
+  private static final Method NEW_VIRTUAL_EXECUTOR = findVirtualExecutor();
+
+  private final ExecutorService sessions;
+  private final Semaphore dbPermits;
+  private final int permits;
+
+  public SessionExecutor(int dbPermits)
+  {
+    this(dbPermits, virtualThreadsAvailable());
+  }
+
+  /**
+   * @param virtual use virtual threads; ignored when the JDK doesn't have them
+   */
+  public SessionExecutor(int dbPermits, boolean virtual)
+  {
+    this.sessions = virtual && virtualThreadsAvailable() ? newVirtualExecutor() : Executors.newCachedThreadPool();
+    this.dbPermits = new Semaphore(dbPermits, true);
+    this.permits = dbPermits;
+  }
+
+  /**
+   * @return true if this JDK can run sessions on virtual threads
+   */
+  public static boolean virtualThreadsAvailable()
+  {
+    return NEW_VIRTUAL_EXECUTOR != null;
+  }
+
+  /**
+   * Starts a session.
+   */
+  public <T> Future<T> submit(Callable<T> session)
+  {
+    return sessions.submit(session);
+  }
+
+  /**
+   * Runs a unit of database work once one of the permits is free.
+   */
+  public <T> T db(Callable<T> work) throws Exception
+  {
+    dbPermits.acquire();
+    try {
+      return work.call();
+    } finally {
+      dbPermits.release();
+    }
+  }
+
+  public int permits()
+  {
+    return permits;
+  }
+
+  /**
+   * Waits for the running sessions to finish and stops the executor.
+   */
+  public void shutdown() throws InterruptedException
+  {
+    sessions.shutdown();
+    sessions.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+  }
+
+  private static Method findVirtualExecutor()
+  {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private static ExecutorService newVirtualExecutor()
+  {
+    try {
+      return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("could not create a virtual thread executor", e);
+    }
+  }
+}
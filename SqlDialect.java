@@ -0,0 +1,242 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The parts of our SQL that differ between database engines.
+ *
+ * Query is written against SQL Server, which is what the service runs on. Everything else it sends
+ * is plain SQL that embedded engines accept as well, except for the handful of constructs here.
+ */
+public abstract class SqlDialect
+{
+  public static final SqlDialect SQL_SERVER = new SqlServer();
+  public static final SqlDialect H2 = new H2();
+
+  /**
+   * Picks the dialect from a JDBC url.
+   */
+  public static SqlDialect forUrl(String url)
+  {
+    if (url != null && url.startsWith("jdbc:h2:"))
+      return H2;
+    return SQL_SERVER;
+  }
+
+  /**
+   * Adds a row limit to {@code select}, which must start with "SELECT " and take the limit as a parameter
+   * bound through {@link #bindLimit}.
+   */
+  public abstract String limit(String select);
+
+  /**
+   * Binds the row limit of a statement built with {@link #limit}.
+   *
+   * @param otherParams number of parameters the statement takes besides the limit
+   * @return index of the first of the other parameters
+   */
+  public abstract int bindLimit(PreparedStatement ps, int limit, int otherParams) throws SQLException;
+
+  /**
+   * @return the statement that opens a serializable transaction, or null if transactions are
+   * controlled through the JDBC connection instead
+   */
+  public abstract String beginTransactionSql();
+
+  public abstract String commitSql();
+
+  public abstract String rollbackSql();
+
+  /**
+   * Makes {@code select} hold on to the rows it reads until the transaction ends, so that another
+   * transaction updating one of them waits for this one.
+   */
+  public abstract String lockRows(String select);
+
+  /**
+   * @return the strictest JDBC isolation level at which a statement that waited for a row lock (see
+   * {@link #lockRows}) still sees what the transaction holding the lock committed
+   */
+  public abstract int lockingIsolation();
+
+  /**
+   * @return true if a single statement can carry a multi-statement script with local variables
+   */
+  public abstract boolean supportsScripts();
+
+  /**
+   * @return true if each connection can work on its own copy of the customer tables through {@link #useSchema}
+   */
+  public abstract boolean supportsIsolatedSchemas();
+
+  /**
+   * Points {@code conn} at its own copy of Users, Reservations, Capacity and Ledger in {@code schema}, creating
+   * them if needed. FLIGHTS stays shared.
+   */
+  public abstract void useSchema(Connection conn, String schema) throws SQLException;
+
+  /**
+   * Sets the parameters of a statement.
+   */
+  public interface Binder
+  {
+    void bind(PreparedStatement ps) throws SQLException;
+  }
+
+  /**
+   * Runs {@code sql} once more with the parameters set by {@code binder} to get the plan the database
+   * actually executes it with.
+   *
+   * @return the plan as the database prints it
+   */
+  public abstract String plan(Connection conn, String sql, Binder binder) throws SQLException;
+
+  static class SqlServer extends SqlDialect
+  {
+    @Override
+    public String limit(String select)
+    {
+      return "SELECT TOP (?) " + select.substring("SELECT ".length());
+    }
+
+    @Override
+    public int bindLimit(PreparedStatement ps, int limit, int otherParams) throws SQLException
+    {
+      ps.setInt(1, limit);
+      return 2;
+    }
+
+    @Override
+    public String beginTransactionSql() { return "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;"; }
+
+    @Override
+    public String commitSql() { return "COMMIT TRANSACTION"; }
+
+    @Override
+    public String rollbackSql() { return "ROLLBACK TRANSACTION"; }
+
+    // a serializable transaction keeps its shared locks until it ends
+    @Override
+    public String lockRows(String select) { return select; }
+
+    @Override
+    public int lockingIsolation() { return Connection.TRANSACTION_SERIALIZABLE; }
+
+    @Override
+    public boolean supportsScripts() { return true; }
+
+    @Override
+    public boolean supportsIsolatedSchemas() { return false; }
+
+    @Override
+    public void useSchema(Connection conn, String schema) throws SQLException
+    {
+      // unqualified names resolve through the login's default schema, which we can't change per connection
+      throw new SQLException("isolated schemas are not supported on SQL Server");
+    }
+
+    @Override
+    public String plan(Connection conn, String sql, Binder binder) throws SQLException
+    {
+      try (Statement st = conn.createStatement()) {
+        st.execute("SET STATISTICS XML ON");
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+          binder.bind(ps);
+          // the showplan comes as one more result set after the query's own
+          String plan = null;
+          boolean isResultSet = ps.execute();
+          while (isResultSet || ps.getUpdateCount() != -1) {
+            if (isResultSet) {
+              try (ResultSet rs = ps.getResultSet()) {
+                boolean showplan = rs.getMetaData().getColumnCount() == 1
+                        && rs.getMetaData().getColumnName(1).contains("Showplan");
+                while (rs.next()) {
+                  if (showplan)
+                    plan = rs.getString(1);
+                }
+              }
+            }
+            isResultSet = ps.getMoreResults();
+          }
+          return plan;
+        } finally {
+          st.execute("SET STATISTICS XML OFF");
+        }
+      }
+    }
+  }
+
+  static class H2 extends SqlDialect
+  {
+    // H2 times out on its SYS table when several sessions run DDL at once, so schemas are set up one at a time
+    private static final ReentrantLock settingUp = new ReentrantLock();
+
+    @Override
+    public String limit(String select)
+    {
+      return select + " FETCH FIRST ? ROWS ONLY";
+    }
+
+    @Override
+    public int bindLimit(PreparedStatement ps, int limit, int otherParams) throws SQLException
+    {
+      ps.setInt(otherParams + 1, limit);
+      return 1;
+    }
+
+    @Override
+    public String beginTransactionSql() { return null; }
+
+    @Override
+    public String commitSql() { return null; }
+
+    @Override
+    public String rollbackSql() { return null; }
+
+    // H2 reads a snapshot even when serializable, and only row locks make writers wait
+    @Override
+    public String lockRows(String select) { return select + " FOR UPDATE"; }
+
+    // above read committed, H2 keeps reading the snapshot it took before the wait
+    @Override
+    public int lockingIsolation() { return Connection.TRANSACTION_READ_COMMITTED; }
+
+    @Override
+    public boolean supportsScripts() { return false; }
+
+    @Override
+    public boolean supportsIsolatedSchemas() { return true; }
+
+    @Override
+    public void useSchema(Connection conn, String schema) throws SQLException
+    {
+      settingUp.lock();
+      try (Statement st = conn.createStatement()) {
+        st.executeUpdate("CREATE SCHEMA IF NOT EXISTS " + schema);
+        st.executeUpdate("SET SCHEMA " + schema);
+        // FLIGHTS is only found in PUBLIC
+        st.executeUpdate("SET SCHEMA_SEARCH_PATH " + schema + ", PUBLIC");
+        LocalDatabase.createCustomerTables(conn);
+      } finally {
+        settingUp.unlock();
+      }
+    }
+
+    @Override
+    public String plan(Connection conn, String sql, Binder binder) throws SQLException
+    {
+      try (PreparedStatement ps = conn.prepareStatement("EXPLAIN ANALYZE " + sql)) {
+        binder.bind(ps);
+        StringBuilder plan = new StringBuilder();
+        try (ResultSet rs = ps.executeQuery()) {
+          while (rs.next())
+            plan.append(rs.getString(1)).append('\n');
+        }
+        return plan.toString();
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The prepared statements of one connection.
+ *
+ * Each distinct SQL string is prepared once and the same statement is handed out from then on, so the
+ * number of server-side statements a session holds is fixed however long it runs. Statements are
+ * prepared forward-only and read-only, and queries that return many rows can ask for a fetch size. The
+ * cache counts how often each statement is used so that reuse can be checked in long running sessions.
+ */
+public class StatementCache
+{
+  private final Connection conn;
+  private final Map<String, PreparedStatement> statements = new LinkedHashMap<>();
+  private final Map<PreparedStatement, long[]> uses = new LinkedHashMap<>();
+
+  public StatementCache(Connection conn)
+  {
+    this.conn = conn;
+  }
+
+  /**
+   * @return the statement for {@code sql}, prepared on first use
+   */
+  public PreparedStatement prepare(String sql) throws SQLException
+  {
+    return prepare(sql, 0);
+  }
+
+  /**
+   * @param fetchSize rows to fetch per round trip, 0 for the driver's default
+   * @return the statement for {@code sql}, prepared on first use
+   */
+  public PreparedStatement prepare(String sql, int fetchSize) throws SQLException
+  {
+    PreparedStatement ps = statements.get(sql);
+    if (ps == null) {
+      ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      if (fetchSize > 0)
+        ps.setFetchSize(fetchSize);
+      statements.put(sql, ps);
+      uses.put(ps, new long[1]);
+    }
+    return ps;
+  }
+
+  /**
+   * Counts one execution of {@code ps}.
+   */
+  public void used(PreparedStatement ps)
+  {
+    long[] n = uses.get(ps);
+    if (n != null)
+      n[0]++;
+  }
+
+  /**
+   * @return the SQL {@code ps} was prepared from, or null if it is not one of this cache's
+   */
+  public String sql(PreparedStatement ps)
+  {
+    for (Map.Entry<String, PreparedStatement> e : statements.entrySet())
+      if (e.getValue() == ps)
+        return e.getKey();
+    return null;
+  }
+
+  /**
+   * @return number of statements held open on the connection
+   */
+  public int size()
+  {
+    return statements.size();
+  }
+
+  /**
+   * @return one line per statement with the number of times it was executed
+   */
+  public String stats()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, PreparedStatement> e : statements.entrySet()) {
+      String sql = e.getKey();
+      sb.append(String.format("%8d  %s%n", uses.get(e.getValue())[0], sql.length() > 100 ? sql.substring(0, 100) + "..." : sql));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Closes every statement. The connection stays open.
+   */
+  public void closeAll()
+  {
+    for (PreparedStatement ps : statements.values()) {
+      try {
+        ps.close();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+    statements.clear();
+    uses.clear();
+  }
+}
@@ -0,0 +1,137 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs searches through a freshly opened session before it takes traffic, so that the JIT, the database's
+ * plan cache and the driver's buffers are warm when the first customer searches.
+ *
+ * The searches are either the search commands of a recorded sample, one command per line as typed at the
+ * prompt, or the most booked (origin, destination, day) routes in Reservations. They are replayed through
+ * {@link Query#transaction_search} in rounds until the p99 of a round stays within {@code tolerance} of the
+ * one before for {@code stableRounds} rounds in a row, or {@code maxRounds} have run.
+ *
+ * Started from FlightService with -Dwarmup=file or -Dwarmup=top[:n] (100 routes by default).
+ */
+public class WarmUp
+{
+  private final Query session;
+  private final PrintStream log;
+  private final int maxRounds = Integer.getInteger("warmup.rounds", 20);
+  private final int stableRounds = 3;
+  private final double tolerance = Double.parseDouble(System.getProperty("warmup.tolerance", "0.05"));
+
+  public WarmUp(Query session, PrintStream log)
+  {
+    this.session = session;
+    this.log = log;
+  }
+
+  /**
+   * Warms {@code session} up as described by the value of -Dwarmup.
+   *
+   * @return true if the p99 stabilized
+   */
+  public static boolean run(Query session, String source) throws IOException, SQLException
+  {
+    WarmUp warmUp = new WarmUp(session, System.err);
+    List<String[]> searches;
+    if (source.equals("top") || source.startsWith("top:"))
+      searches = warmUp.popularSearches(source.equals("top") ? 100 : Integer.parseInt(source.substring(4)));
+    else
+      searches = readSearches(source);
+    return warmUp.run(searches);
+  }
+
+  /**
+   * @return the most booked routes, searched the way customers search them
+   */
+  List<String[]> popularSearches(int n) throws SQLException
+  {
+    List<String[]> searches = new ArrayList<>();
+    for (String[] route : session.popularRoutes(n))
+      searches.add(new String[] { "search", route[0], route[1], "0", route[2], "10" });
+    return searches;
+  }
+
+  /**
+   * @return the well-formed search commands in {@code filename}, tokenized
+   */
+  static List<String[]> readSearches(String filename) throws IOException
+  {
+    List<String[]> searches = new ArrayList<>();
+    try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] tokens = FlightService.tokenize(line.trim());
+        if (tokens.length == 6 && tokens[0].equals("search"))
+          searches.add(tokens);
+      }
+    }
+    return searches;
+  }
+
+  /**
+   * Replays {@code searches} in rounds and reports each round's latency.
+   *
+   * @return true if the p99 stabilized within the allowed rounds
+   */
+  public boolean run(List<String[]> searches)
+  {
+    if (searches.isEmpty()) {
+      log.println("warm-up: nothing to replay");
+      return false;
+    }
+    log.println("warm-up: " + searches.size() + " searches per round");
+
+    long[] latencies = new long[searches.size()];
+    long previous = -1;
+    int stable = 0;
+    boolean stabilized = false;
+    for (int round = 1; round <= maxRounds && !stabilized; ++round) {
+      for (int i = 0; i < searches.size(); ++i) {
+        String[] s = searches.get(i);
+        long start = System.nanoTime();
+        // same path as the prompt; a bad line in the sample just answers with an error
+        session.transaction_search(s[1], s[2], !s[3].equals("0"), parseInt(s[4]), parseInt(s[5]));
+        latencies[i] = System.nanoTime() - start;
+      }
+      long[] sorted = latencies.clone();
+      Arrays.sort(sorted);
+      long p50 = LoadGenerator.Latencies.percentile(sorted, 0.50);
+      long p99 = LoadGenerator.Latencies.percentile(sorted, 0.99);
+      log.println(String.format("warm-up round %d: p50=%.2fms p99=%.2fms", round, p50 / 1e6, p99 / 1e6));
+
+      if (previous > 0 && Math.abs(p99 - previous) <= tolerance * previous)
+        stable++;
+      else
+        stable = 0;
+      previous = p99;
+      if (stable >= stableRounds) {
+        log.println(String.format("warm-up: p99 stabilized at %.2fms after %d rounds", p99 / 1e6, round));
+        stabilized = true;
+      }
+    }
+    if (!stabilized)
+      log.println("warm-up: p99 did not stabilize in " + maxRounds + " rounds");
+
+    // the warm-up searches are not the customer's to book
+    session.rememberSearch(Collections.emptyList());
+    return stabilized;
+  }
+
+  private static int parseInt(String s)
+  {
+    try {
+      return Integer.parseInt(s);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
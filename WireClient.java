@@ -0,0 +1,88 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A client of the binary mode of {@link WireServer}, and the reference for writing others.
+ *
+ * Run on its own, it reads command lines from standard input, sends each one as a frame and prints the
+ * decoded response the way the text mode would, so the two modes can be compared line by line.
+ *
+ *   java WireClient [host] [port]
+ */
+public class WireClient implements AutoCloseable
+{
+  private final Socket socket;
+  private final DataInputStream in;
+  private final OutputStream out;
+  // follows the dictionary of this connection, so it has to see every response
+  private final BinaryProtocol.Decoder decoder = new BinaryProtocol.Decoder();
+
+  public WireClient(String host, int port) throws IOException
+  {
+    socket = new Socket(host, port);
+    socket.setTcpNoDelay(true);
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    out = new BufferedOutputStream(socket.getOutputStream());
+    out.write(WireServer.BINARY);
+  }
+
+  /**
+   * Sends {@code command} and waits for its response.
+   */
+  public BinaryProtocol.Response send(String command) throws IOException
+  {
+    byte[] request = command.getBytes(StandardCharsets.UTF_8);
+    BinaryProtocol.writeFrame(out, request, request.length);
+    out.flush();
+    byte[] payload = BinaryProtocol.readFrame(in);
+    if (payload == null)
+      throw new EOFException("server closed the connection");
+    return decoder.decode(payload);
+  }
+
+  /**
+   * @return {@code r} as the text mode would have sent it
+   */
+  static String render(BinaryProtocol.Response r)
+  {
+    switch (r.type) {
+      case BinaryProtocol.ITINERARIES:
+        return Query.renderItineraries(r.itineraries);
+      case BinaryProtocol.RESERVATIONS:
+        return Query.renderReservations(r.reservations);
+      default:
+        return r.text;
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    socket.close();
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    String host = args.length > 0 ? args[0] : "localhost";
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 7100;
+    BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    CommandTokenizer tokens = new CommandTokenizer();
+    try (WireClient client = new WireClient(host, port)) {
+      String line;
+      while ((line = stdin.readLine()) != null) {
+        System.out.print(render(client.send(line)));
+        System.out.flush();
+        if (tokens.parse(line).command() == CommandTokenizer.QUIT)
+          return;
+      }
+    }
+  }
+}
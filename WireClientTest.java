@@ -0,0 +1,90 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a session through {@link WireClient} against the binary mode of {@link WireServer}, and checks
+ * that what it renders is what the text mode says for the same session. Runs on the local H2 database.
+ */
+public class WireClientTest
+{
+  static final String DBCONFIG = "dbconn.local.properties";
+  static final String SEARCH = "search \"Seattle WA\" \"Boston MA\" 0 1 5";
+
+  private final ExecutorService server = Executors.newSingleThreadExecutor();
+  private ServerSocket listener;
+  private Future<?> serving;
+  private Query local;
+
+  @Before
+  public void open () throws Exception
+  {
+    local = new Query(DBCONFIG);
+    local.openConnection();
+    local.prepareStatements();
+    local.clearTables();
+
+    listener = new ServerSocket(0);
+    serving = server.submit(() -> {
+      try (Socket s = listener.accept()) {
+        WireServer.serve(s, DBCONFIG, new SessionExecutor(1));
+      }
+      return null;
+    });
+  }
+
+  @After
+  public void close () throws Exception
+  {
+    listener.close();
+    server.shutdownNow();
+    server.awaitTermination(10, TimeUnit.SECONDS);
+    local.closeConnection();
+  }
+
+  @Test
+  public void rendersWhatTheTextModeSays () throws Exception
+  {
+    try (WireClient client = new WireClient("localhost", listener.getLocalPort())) {
+      assertEquals("Created user alice\n", WireClient.render(client.send("create alice pw 100000")));
+      assertEquals("Logged in as alice\n", WireClient.render(client.send("login alice pw")));
+
+      BinaryProtocol.Response search = client.send(SEARCH);
+      assertEquals(BinaryProtocol.ITINERARIES, search.type);
+      assertTrue(search.itineraries.size() > 1);
+      assertEquals(FlightService.execute(local, SEARCH), WireClient.render(search));
+      // the second search only sends the numbers of the carriers and cities
+      assertEquals(FlightService.execute(local, SEARCH), WireClient.render(client.send(SEARCH)));
+
+      assertEquals("Booked flight(s), reservation ID: 1\n", WireClient.render(client.send("book 0")));
+      BinaryProtocol.Response reservations = client.send("reservations");
+      assertEquals(BinaryProtocol.RESERVATIONS, reservations.type);
+      assertEquals("Logged in as alice\n", FlightService.execute(local, "login alice pw"));
+      assertEquals(FlightService.execute(local, "reservations"), WireClient.render(reservations));
+
+      assertTrue(WireClient.render(client.send("search \"Seattle WA\" \"Boston MA\" 0 1")).startsWith("Error: "));
+      client.send("quit");
+    }
+    serving.get(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void reservationsNeedALogin () throws Exception
+  {
+    try (WireClient client = new WireClient("localhost", listener.getLocalPort())) {
+      BinaryProtocol.Response r = client.send("reservations");
+      assertEquals(BinaryProtocol.TEXT, r.type);
+      assertEquals(FlightService.execute(local, "reservations"), WireClient.render(r));
+    }
+  }
+}
@@ -0,0 +1,159 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Serves the command set over TCP, one session per connection.
+ *
+ * A connection speaks text unless its first byte is 0, in which case every byte after it is
+ * {@link BinaryProtocol} frames. In text mode the client sends command lines and every response is
+ * followed by an empty line. Commands go through {@link FlightService#execute} in both modes, so they
+ * are recorded and admitted the same way.
+ *
+ * Every connection holds a session with its own database connection, so their number is bounded: a
+ * connection beyond the bound is closed right away, before it opens a session, and one that sends
+ * nothing for the timeout is closed as well.
+ *
+ *   java -Ddbconfig=dbconn.local.properties WireServer [port]
+ *   -Dpermits=32                sessions talking to the database at once
+ *   -Dwire.max_connections=256  connections served at once
+ *   -Dwire.timeout_ms=300000    how long a connection may wait between commands
+ */
+public class WireServer
+{
+  static final int BINARY = 0;
+
+  public static void main(String[] args) throws Exception
+  {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 7100;
+    SessionExecutor executor = new SessionExecutor(Integer.getInteger("permits", 32));
+    Semaphore connections = new Semaphore(Integer.getInteger("wire.max_connections", 256));
+    int timeout = Integer.getInteger("wire.timeout_ms", 300000);
+    try (ServerSocket server = new ServerSocket(port)) {
+      System.err.println("listening on " + port);
+      while (true) {
+        Socket socket = server.accept();
+        if (!connections.tryAcquire()) {
+          System.err.println(socket.getRemoteSocketAddress() + ": refused, too many connections");
+          socket.close();
+          continue;
+        }
+        executor.submit(() -> {
+          try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(timeout);
+            serve(s, FlightService.DBCONFIG_FILENAME, executor);
+          } catch (Exception e) {
+            System.err.println(socket.getRemoteSocketAddress() + ": " + e);
+          } finally {
+            connections.release();
+          }
+          return null;
+        });
+      }
+    }
+  }
+
+  /**
+   * Serves one connection on a session of the database in {@code configFilename} until the client quits
+   * or hangs up.
+   */
+  static void serve(Socket socket, String configFilename, SessionExecutor executor) throws Exception
+  {
+    PushbackInputStream in = new PushbackInputStream(new BufferedInputStream(socket.getInputStream()));
+    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+    int first = in.read();
+    if (first < 0)
+      return;
+
+    Query q = new Query(configFilename);
+    q.openConnection();
+    q.prepareStatements();
+    try {
+      if (first == BINARY) {
+        serveBinary(q, new DataInputStream(in), out, executor);
+      } else {
+        in.unread(first);
+        serveText(q, in, out, executor);
+      }
+    } finally {
+      q.closeConnection();
+    }
+  }
+
+  private static void serveText(Query q, PushbackInputStream in, OutputStream out, SessionExecutor executor)
+          throws Exception
+  {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    CommandTokenizer tokens = new CommandTokenizer();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      tokens.parse(line);
+      String response = executor.db(() -> FlightService.execute(q, tokens));
+      out.write(response.getBytes(StandardCharsets.UTF_8));
+      out.write(response.endsWith("\n") ? "\n".getBytes() : "\n\n".getBytes());
+      out.flush();
+      if (tokens.command() == CommandTokenizer.QUIT)
+        return;
+    }
+  }
+
+  private static void serveBinary(Query q, DataInputStream in, OutputStream out, SessionExecutor executor)
+          throws Exception
+  {
+    BinaryProtocol.Encoder encoder = new BinaryProtocol.Encoder();
+    CommandTokenizer tokens = new CommandTokenizer();
+    byte[] request;
+    while ((request = BinaryProtocol.readFrame(in)) != null) {
+      tokens.parse(new String(request, StandardCharsets.UTF_8));
+      int length = executor.db(() -> respond(q, tokens, encoder));
+      BinaryProtocol.writeFrame(out, encoder.buffer(), length);
+      out.flush();
+      if (tokens.command() == CommandTokenizer.QUIT)
+        return;
+    }
+  }
+
+  /**
+   * Runs the command in {@code tokens}, leaving the response in the encoder's buffer.
+   *
+   * @return the length of the response
+   */
+  static int respond(Query q, CommandTokenizer tokens, BinaryProtocol.Encoder encoder)
+  {
+    switch (tokens.command()) {
+      case CommandTokenizer.SEARCH:
+        FlightService.SearchArgs a = FlightService.SearchArgs.parse(tokens);
+        if (a.error != null)
+          return encoder.text(a.error);
+        return FlightService.execute(q, tokens, encoder::text,
+                () -> encoder.itineraries(q.search(a.originCity, a.destinationCity, a.direct, a.day, a.count, a.rank)));
+
+      case CommandTokenizer.RESERVATIONS:
+        return FlightService.execute(q, tokens, encoder::text, () -> {
+          // the text has the message for a session that isn't logged in
+          if (q.currentUser() == null)
+            return encoder.text(q.transaction_reservations());
+          try {
+            return encoder.reservations(q.reservations());
+          } catch (SQLException e) {
+            e.printStackTrace();
+            return encoder.text("Failed to retrieve reservations\n");
+          }
+        });
+
+      default:
+        return encoder.text(FlightService.execute(q, tokens));
+    }
+  }
+}
@@ -26,9 +26,22 @@ CREATE TABLE FLIGHTS (
     price int,            -- in $          
 );
 
+-- one index per ranking key for the search modes (see SearchRank), so that the k cheapest flights of a
+-- route and day are read in order just like the k shortest; the second pair serves the second leg of
+-- one-stop itineraries
+CREATE INDEX flights_route_time ON FLIGHTS (origin_city, dest_city, day_of_month, actual_time)
+    INCLUDE (fid, carrier_id, flight_num, capacity, price);
+CREATE INDEX flights_route_price ON FLIGHTS (origin_city, dest_city, day_of_month, price)
+    INCLUDE (fid, carrier_id, flight_num, capacity, actual_time);
+CREATE INDEX flights_leg_time ON FLIGHTS (origin_city, day_of_month, actual_time)
+    INCLUDE (fid, dest_city, carrier_id, flight_num, capacity, price);
+CREATE INDEX flights_leg_price ON FLIGHTS (origin_city, day_of_month, price)
+    INCLUDE (fid, dest_city, carrier_id, flight_num, capacity, actual_time);
+
 CREATE TABLE Users (
     username varchar(50),
-    password varchar(50),
+    password varbinary(32), -- PBKDF2 hash, see PasswordHasher
+    salt varbinary(16),
     balance int,
     PRIMARY KEY(username) 
 );
@@ -42,11 +55,27 @@ CREATE TABLE Reservations (
     fid1 int,
     fid2 int,
     day int,
+    canceled int DEFAULT 0, -- 1 once canceled; canceled IDs are never reused
+    booked_at bigint,       -- epoch ms; unpaid reservations expire after flightservice.hold_ttl_seconds
     PRIMARY KEY(rev_id)
 );
+-- the reservations command and the same day check of book look reservations up by user
+CREATE INDEX reservations_user ON Reservations (username);
 
+-- remaining seats, one row per flight that has been booked at least once
 CREATE TABLE Capacity (
     fid int,
     capacity int,
+    PRIMARY KEY(fid),
     FOREIGN KEY(fid) REFERENCES Flights(fid)
-);
\ No newline at end of file
+);
+-- every change of a balance, appended in the transaction that makes it: the initial deposit, payments
+-- (negative) and refunds; a user's balance is always the sum of their entries
+CREATE TABLE Ledger (
+    username varchar(50),
+    rev_id int,            -- the reservation paid or refunded, 0 for a deposit
+    amount int,
+    kind varchar(8),       -- DEPOSIT, PAY or REFUND
+    at bigint              -- epoch ms
+);
+CREATE INDEX ledger_user ON Ledger (username);
@@ -1,8 +1,9 @@
 #!/bin/bash
 
-if [[ "$#" -ne 3 ]]; then
-  echo "Usage: runTests.sh <source folder> <output folder> <folder name containing test cases>"
+if [[ "$#" -ne 3 && "$#" -ne 4 ]]; then
+  echo "Usage: runTests.sh <source folder> <output folder> <folder name containing test cases> [db config]"
   echo "Compiles java files in <source folder> and put the class files in <output folder>"
+  echo "The db config defaults to dbconn.properties; dbconn.local.properties runs on the H2 jar in lib/"
   echo "WARNING: output folder is initially deleted and recreated!!!"
   exit 1
 fi
@@ -10,18 +11,20 @@ fi
 src=$1
 out=$2
 cases=$3
+dbconfig=${4:-dbconn.properties}
 
 rm -rf $out
 mkdir $out
 
 echo "compiling from " $src
-javac -cp lib/junit-4.12.jar:lib/hamcrest-core-1.3.jar:./lib/sqljdbc4.jar:$out -d $out $src/*.java
+javac -cp "lib/*":$out -d $out $src/*.java
 
 # create jar file
 cd $out;
 jar -cvf out.jar *
 cd -;
 
-# run actual tests
-java -Dfolder=$cases -cp lib/junit-4.12.jar:lib/hamcrest-core-1.3.jar:./lib/sqljdbc4.jar:$out/out.jar \
-  org.junit.runner.JUnitCore Grader
+# run actual tests, then the unit tests next to the sources
+tests=$(cd $src && ls *Test.java 2>/dev/null | sed 's/\.java$//')
+java -Dfolder=$cases -Ddbconfig=$dbconfig $JAVA_OPTS -cp "lib/*":$out/out.jar \
+  org.junit.runner.JUnitCore Grader $tests